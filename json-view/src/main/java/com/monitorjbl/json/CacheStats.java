@@ -0,0 +1,62 @@
+package com.monitorjbl.json;
+
+/**
+ * Point-in-time statistics for one of the caches kept by a {@link JsonViewSerializer}.
+ */
+public class CacheStats {
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
+  private final int size;
+  private final int maxSize;
+
+  CacheStats(long hitCount, long missCount, long evictionCount, int size, int maxSize) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    this.size = size;
+    this.maxSize = maxSize;
+  }
+
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  public long getMissCount() {
+    return missCount;
+  }
+
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return The number of entries held when the stats were taken
+   */
+  public int getSize() {
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return The fraction of lookups answered from the cache, or 1 if there were none
+   */
+  public double getHitRate() {
+    long total = hitCount + missCount;
+    return total == 0 ? 1.0 : (double) hitCount / total;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStats{" +
+        "hitCount=" + hitCount +
+        ", missCount=" + missCount +
+        ", evictionCount=" + evictionCount +
+        ", size=" + size +
+        ", maxSize=" + maxSize +
+        '}';
+  }
+}
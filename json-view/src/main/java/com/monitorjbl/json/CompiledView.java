@@ -0,0 +1,373 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.monitorjbl.json.JsonViewSerializer.AccessibleProperty;
+
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot of the shape of a {@link JsonView}: its matches and its matcher behavior,
+ * but never its value. Two views with the same shape compile to equal instances, so
+ * the {@link ViewPlan}s cached here are shared by every request using that view.
+ */
+class CompiledView {
+  /**
+   * Upper bound on the number of (class, path) pairs tracked per view. Recursive object
+   * graphs produce a new path (and so a new plan) at every level, so the cache can't grow
+   * unchecked. Plans for paths that weren't interned aren't cached either.
+   */
+  static final int MAX_PLANS = 4096;
+
+  final MatcherBehavior matcherBehavior;
+  /**
+   * The view's inclusion policy, or null if the mapper's default applies
+   */
+  final InclusionPolicy inclusion;
+  /**
+   * Whether the view or any of its matches sets an inclusion policy, which Jackson wouldn't
+   * know to apply
+   */
+  private final boolean hasInclusion;
+  /**
+   * The empty path, from which every path walked under this view is interned
+   */
+  final PathNode root = PathNode.root();
+  private final Map<Class<?>, Match> matches = new HashMap<>();
+  private final Map<PlanKey, PlanEntry> plans = new ConcurrentHashMap<>();
+  private final Map<PlanKey, Boolean> ruleFree = new ConcurrentHashMap<>();
+  private final TierPolicy tiers;
+  /**
+   * Whether Jackson can apply this view with property filters, see {@link ViewFilters}
+   */
+  final boolean translatable;
+  private final int hashCode;
+  /**
+   * Lookups since the last sweep. Updated without synchronization, losing a few counts
+   * only delays the next sweep.
+   */
+  private int lookups;
+
+  CompiledView(JsonView<?> view, MatcherBehavior defaultMatcherBehavior, TierPolicy tiers) {
+    this.tiers = tiers;
+    view.getMatches().forEach((cls, match) -> matches.put(cls, match.copy()));
+    this.matcherBehavior = view.getMatcherBehavior() == null ? defaultMatcherBehavior : view.getMatcherBehavior();
+    this.inclusion = InclusionPolicy.of(view.getInclusion());
+    this.hasInclusion = view.getInclusion() != null || matches.values().stream().anyMatch(m -> m.getInclusion() != null);
+    this.translatable = !hasInclusion && ViewFilters.canTranslate(matches, matcherBehavior);
+    this.hashCode = Objects.hash(matches, matcherBehavior, view.getInclusion());
+  }
+
+  /**
+   * A compiled view remembered on the {@link JsonView} it was compiled from, along with
+   * what's needed to tell whether the view or any of its matches changed since. Checking
+   * that only compares counters and references, where compiling again copies and hashes
+   * every match.
+   */
+  static final class Stamp {
+    private final Object owner;
+    private final int version;
+    private final Match[] matches;
+    private final int[] modCounts;
+    private CompiledView view;
+
+    /**
+     * Captures the view's state before it's compiled, so changes made while compiling
+     * make the stamp stale rather than get lost
+     */
+    Stamp(Object owner, JsonView<?> source) {
+      this.owner = owner;
+      this.version = source.version();
+      this.matches = source.getMatches().values().toArray(new Match[0]);
+      this.modCounts = new int[matches.length];
+      for(int i = 0; i < matches.length; i++) {
+        modCounts[i] = matches[i].modCount();
+      }
+    }
+
+    Stamp compiledTo(CompiledView view) {
+      this.view = view;
+      return this;
+    }
+
+    CompiledView view() {
+      return view;
+    }
+
+    /**
+     * Whether the view compiled by {@code owner} would still come out the same
+     */
+    boolean isCurrent(Object owner, JsonView<?> source, MatcherBehavior defaultMatcherBehavior) {
+      MatcherBehavior behavior = source.getMatcherBehavior() == null ? defaultMatcherBehavior : source.getMatcherBehavior();
+      if(owner != this.owner || source.version() != version || behavior != view.matcherBehavior
+          || InclusionPolicy.of(source.getInclusion()) != view.inclusion || source.getMatches().size() != matches.length) {
+        return false;
+      }
+      int i = 0;
+      for(Match match : source.getMatches().values()) {
+        if(match != matches[i] || match.modCount() != modCounts[i]) {
+          return false;
+        }
+        i++;
+      }
+      return true;
+    }
+  }
+
+  Match getMatch(Class<?> cls) {
+    return matches.get(cls);
+  }
+
+  /**
+   * Returns the plan for serializing an instance of {@code cls} in the given context. The
+   * plan is compiled every time until the pair is hot enough to keep it, see
+   * {@link TierPolicy}.
+   */
+  ViewPlan plan(PlanKey key, PlanCompiler compiler) {
+    if(!key.path.isInterned()) {
+      return compiler.compileViewPlan(key.cls);
+    }
+
+    PlanEntry entry = plans.get(key);
+    if(entry == null) {
+      if(plans.size() >= MAX_PLANS) {
+        return compiler.compileViewPlan(key.cls);
+      }
+      entry = plans.computeIfAbsent(key.copy(), k -> new PlanEntry());
+    }
+
+    if(++lookups >= tiers.sweepInterval) {
+      sweep();
+    }
+    return entry.use(key.cls, compiler, tiers);
+  }
+
+  /**
+   * Whether nothing in this view can apply to an instance of the key's class in the key's
+   * context, or to anything nested in it, so that Jackson can write it the way it would
+   * without a view. The answer is conservative: any type in the subtree that could be an
+   * instance of a matched class counts as filtered. Answers are kept per context, and
+   * assume the view is used under one mapper configuration.
+   */
+  boolean isRuleFree(PlanKey key, SerializationConfig config) {
+    if(!key.path.isInterned() || hasInclusion) {
+      return false;
+    }
+
+    Boolean free = ruleFree.get(key);
+    if(free == null) {
+      try {
+        free = (key.currentMatch == null || !appliesBelow(key.currentMatch, key.path))
+            && isMatchFree(config.constructType(key.cls), config, new HashSet<>());
+      } catch(RuntimeException e) {
+        // Types Jackson can't introspect are left to the regular path
+        free = false;
+      }
+      if(ruleFree.size() < MAX_PLANS) {
+        ruleFree.putIfAbsent(key.copy(), free);
+      }
+    }
+    return free;
+  }
+
+  /**
+   * Whether any include, exclude or transform of the match could apply at or below the path
+   */
+  static boolean appliesBelow(Match match, PathNode path) {
+    if(!match.getIncludeMatcher().state(path).isDead() || !match.getExcludeMatcher().state(path).isDead()) {
+      return true;
+    }
+    String prefix = path.isRoot() ? "" : path.path() + ".";
+    for(String transformed : match.getTransforms().keySet()) {
+      if(transformed.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Walks the properties Jackson would write for a type, and the types they contain,
+   * looking for anything a class match could apply to
+   */
+  private boolean isMatchFree(JavaType type, SerializationConfig config, Set<Class<?>> seen) {
+    if(matches.isEmpty()) {
+      return true;
+    } else if(type.isContainerType() || type.isReferenceType()) {
+      JavaType keyType = type.getKeyType();
+      return (keyType == null || isMatchFree(keyType, config, seen)) && isMatchFree(type.getContentType(), config, seen);
+    }
+
+    Class<?> cls = type.getRawClass();
+    if(ValueType.of(cls).category == ValueType.Category.LIST) {
+      // Iterables Jackson doesn't see as containers, and streams, are left to the regular path
+      return false;
+    } else if(cls.isPrimitive() || ValueType.of(cls).category != ValueType.Category.OBJECT || !seen.add(cls)) {
+      return true;
+    }
+
+    boolean subclassable = !Modifier.isFinal(cls.getModifiers());
+    for(Class<?> matched : matches.keySet()) {
+      // A subclass could implement any interface
+      if(matched.isAssignableFrom(cls) || (subclassable && (matched.isInterface() || cls.isAssignableFrom(matched)))) {
+        return false;
+      }
+    }
+
+    for(BeanPropertyDefinition property : config.introspect(type).findProperties()) {
+      if(!isMatchFree(property.getPrimaryType(), config, seen)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Demotes every pair that wasn't used often enough since the last sweep to stay in its
+   * tier, and drops those that weren't used at all.
+   */
+  private synchronized void sweep() {
+    if(lookups < tiers.sweepInterval) {
+      // Another thread just swept
+      return;
+    }
+    lookups = 0;
+    plans.values().removeIf(entry -> entry.demote(tiers));
+  }
+
+  /**
+   * Number of paths the class has a cached plan for, for tests
+   */
+  int cachedPlanCount(Class<?> cls) {
+    return (int) plans.entrySet().stream().filter(e -> e.getKey().cls == cls && e.getValue().plan != null).count();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(this == o) return true;
+    if(o == null || getClass() != o.getClass()) return false;
+    CompiledView that = (CompiledView) o;
+    return hashCode == that.hashCode &&
+        matcherBehavior == that.matcherBehavior &&
+        inclusion == that.inclusion &&
+        hasInclusion == that.hasInclusion &&
+        Objects.equals(matches, that.matches);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  /**
+   * The usage of one (class, path) pair and, once it's hot enough, its plan. Counts are
+   * updated without synchronization: a lost update only delays a promotion.
+   */
+  private static class PlanEntry {
+    private int uses;
+    private int recentUses;
+    private volatile ViewPlan plan;
+
+    ViewPlan use(Class<?> cls, PlanCompiler compiler, TierPolicy tiers) {
+      uses++;
+      recentUses++;
+
+      ViewPlan p = plan;
+      if(p == null) {
+        p = compiler.compileViewPlan(cls);
+        if(uses >= tiers.planThreshold) {
+          plan = p;
+        }
+      } else if(tiers.generateWriters && uses >= tiers.writerThreshold) {
+        p.promote(cls);
+      }
+      return p;
+    }
+
+    /**
+     * Drops this pair to the tier its recent usage warrants, returning true if it wasn't
+     * used at all and can be forgotten
+     */
+    boolean demote(TierPolicy tiers) {
+      int recent = recentUses;
+      recentUses = 0;
+      if(recent == 0) {
+        return true;
+      }
+
+      ViewPlan p = plan;
+      if(p != null) {
+        if(recent < tiers.planThreshold) {
+          plan = null;
+          uses = recent;
+        } else if(recent < tiers.writerThreshold || !tiers.generateWriters) {
+          p.demote();
+          uses = Math.min(uses, recent);
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Compiles the plan for a class in the context a {@link PlanKey} describes
+   */
+  interface PlanCompiler {
+    ViewPlan compileViewPlan(Class cls);
+  }
+
+  /**
+   * Identifies a plan. Keys are mutable so a writer can reuse one for every lookup; the
+   * map only ever holds copies.
+   */
+  static final class PlanKey {
+    private Class<?> cls;
+    private PathNode path;
+    private Match currentMatch;
+    private AccessibleProperty referringField;
+    private int hashCode;
+
+    PlanKey set(Class<?> cls, PathNode path, Match currentMatch, AccessibleProperty referringField) {
+      this.cls = cls;
+      this.path = path;
+      this.currentMatch = currentMatch;
+      this.referringField = referringField;
+
+      int result = cls.hashCode();
+      result = 31 * result + path.id;
+      result = 31 * result + System.identityHashCode(currentMatch);
+      result = 31 * result + (referringField != null ? referringField.hashCode() : 0);
+      this.hashCode = result;
+      return this;
+    }
+
+    PlanKey copy() {
+      return new PlanKey().set(cls, path, currentMatch, referringField);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o) return true;
+      if(o == null || getClass() != o.getClass()) return false;
+      PlanKey planKey = (PlanKey) o;
+      // Paths and matches are compared by identity, they always come from the same compiled view
+      return hashCode == planKey.hashCode &&
+          cls == planKey.cls &&
+          path == planKey.path &&
+          currentMatch == planKey.currentMatch &&
+          Objects.equals(referringField, planKey.referringField);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.monitorjbl.json;
+
+import java.io.IOException;
+
+/**
+ * Writes a container type that isn't a {@link java.util.Collection} or {@link java.util.Map},
+ * such as a collection of primitives, as a JSON array or object. Primitive elements can be
+ * written straight to the {@link ContainerWriter#generator() generator}, without boxing.
+ * Other values should go through {@link ContainerWriter#writeElement} or
+ * {@link ContainerWriter#writeEntry}, which apply the view to them the same way they're
+ * applied to the elements of a {@code List} or the values of a {@code Map}.
+ * <p>
+ * Adapters are registered with {@link JsonViewSerializer#registerContainerAdapter} and, like
+ * custom serializers, apply to subclasses of the class they're registered for. A container
+ * is written within one step of a {@link ResumableSerialization}.
+ *
+ * @param <T> The container type
+ */
+public interface ContainerAdapter<T> {
+
+  /**
+   * @return Whether containers are written as JSON objects, like maps, rather than arrays
+   */
+  default boolean isMap() {
+    return false;
+  }
+
+  /**
+   * @param container The container
+   * @return The number of elements or entries, or -1 if it isn't known up front
+   */
+  default int size(T container) {
+    return -1;
+  }
+
+  /**
+   * Writes the container's elements, or its entries if it's {@link #isMap() a map}. The
+   * array or object has already been started, and is closed afterwards.
+   *
+   * @param container The container
+   * @param writer    Where to write elements and entries
+   * @throws IOException If writing fails
+   */
+  void write(T container, ContainerWriter writer) throws IOException;
+}
@@ -0,0 +1,33 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * Writes the contents of a container for a {@link ContainerAdapter}
+ */
+public interface ContainerWriter {
+
+  /**
+   * @return The generator, to write primitive elements or entries to directly
+   */
+  JsonGenerator generator();
+
+  /**
+   * Writes an element of an array, applying the view to it like to an element of a {@code List}
+   *
+   * @param value The element
+   * @throws IOException If writing fails
+   */
+  void writeElement(Object value) throws IOException;
+
+  /**
+   * Writes an entry of an object, applying the view to the value like to a value of a {@code Map}
+   *
+   * @param key   The key
+   * @param value The value
+   * @throws IOException If writing fails
+   */
+  void writeEntry(Object key, Object value) throws IOException;
+}
@@ -0,0 +1,65 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.lang.reflect.AccessibleObject;
+
+/**
+ * The names enum constants are written as, encoded once per enum. Constants are written
+ * by name, or by the name given with {@link JsonProperty}.
+ */
+final class EnumNames {
+  private static final SerializedString[] WRITTEN_BY_JACKSON = new SerializedString[0];
+
+  private static final ClassValue<SerializedString[]> NAMES = new ClassValue<SerializedString[]>() {
+    @Override
+    protected SerializedString[] computeValue(Class<?> type) {
+      return resolve(type);
+    }
+  };
+
+  private EnumNames() {}
+
+  /**
+   * @return The encoded name of the constant, or null if its enum has a {@link JsonValue}
+   * and has to be written by Jackson
+   */
+  static SerializedString of(Enum<?> constant) {
+    SerializedString[] names = NAMES.get(constant.getDeclaringClass());
+    return names == WRITTEN_BY_JACKSON ? null : names[constant.ordinal()];
+  }
+
+  private static SerializedString[] resolve(Class<?> type) {
+    if(hasJsonValue(type.getDeclaredMethods()) || hasJsonValue(type.getDeclaredFields())) {
+      return WRITTEN_BY_JACKSON;
+    }
+
+    Object[] constants = type.getEnumConstants();
+    SerializedString[] names = new SerializedString[constants.length];
+    for(Object constant : constants) {
+      String name = ((Enum<?>) constant).name();
+      try {
+        JsonProperty jsonProperty = type.getField(name).getAnnotation(JsonProperty.class);
+        if(jsonProperty != null && jsonProperty.value().length() > 0) {
+          name = jsonProperty.value();
+        }
+      } catch(NoSuchFieldException e) {
+        throw new RuntimeException(e);
+      }
+      names[((Enum<?>) constant).ordinal()] = new SerializedString(name);
+    }
+    return names;
+  }
+
+  private static boolean hasJsonValue(AccessibleObject[] members) {
+    for(AccessibleObject member : members) {
+      JsonValue jsonValue = member.getAnnotation(JsonValue.class);
+      if(jsonValue != null && jsonValue.value()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
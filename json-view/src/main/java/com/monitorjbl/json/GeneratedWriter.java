@@ -0,0 +1,81 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.monitorjbl.json.JsonViewSerializer.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Base class of the writers generated at runtime by {@link WriterGenerator}. This is an
+ * internal class; it is only public because generated writers are defined in their own
+ * class loader.
+ * <p>
+ * A generated writer writes the properties of one {@link ViewPlan}, in order. Properties
+ * it can't read directly are handed back to the regular writer by index. When a property
+ * opens a container, the generated writer returns so the container can be written first,
+ * and is called again from the next property afterwards.
+ */
+public abstract class GeneratedWriter {
+  ViewPlan plan;
+
+  protected GeneratedWriter() {}
+
+  /**
+   * Writes the properties of the plan from {@code from} on, up to and including the first
+   * one that opens a container. The start and end of the object are written by the caller.
+   *
+   * @param bean   The object being written
+   * @param jgen   The generator to write to
+   * @param writer The writer for the current position in the object graph
+   * @param from   The index of the first property to write
+   * @return The index of the next property to write, or the number of properties if all
+   * of them were written
+   * @throws IOException If writing fails
+   */
+  protected abstract int write(Object bean, JsonGenerator jgen, Object writer, int from) throws IOException;
+
+  /**
+   * @param index The index of a property in the plan
+   * @return The property's name, encoded ahead of time
+   */
+  protected final SerializableString name(int index) {
+    return plan.properties[index].serializedName;
+  }
+
+  /**
+   * @param writer The writer passed to {@link #write}
+   * @param index  The index of a primitive property in the plan
+   * @return Whether the property can be written straight from its getter
+   */
+  protected final boolean canWritePrimitive(Object writer, int index) {
+    return ((JsonWriter) writer).canWritePrimitive(plan.properties[index]);
+  }
+
+  /**
+   * Reads and writes a property the regular way.
+   *
+   * @param writer The writer passed to {@link #write}
+   * @param bean   The object being written
+   * @param index  The index of the property in the plan
+   * @return Whether the property opened a container
+   * @throws IOException If writing fails
+   */
+  protected final boolean writeProperty(Object writer, Object bean, int index) throws IOException {
+    return ((JsonWriter) writer).startProperty(plan.properties[index], bean);
+  }
+
+  /**
+   * Writes a property whose value was read by the generated code.
+   *
+   * @param writer The writer passed to {@link #write}
+   * @param bean   The object being written
+   * @param value  The value of the property
+   * @param index  The index of the property in the plan
+   * @return Whether the property opened a container
+   * @throws IOException If writing fails
+   */
+  protected final boolean writeValue(Object writer, Object bean, Object value, int index) throws IOException {
+    return ((JsonWriter) writer).startValue(plan.properties[index], bean, value);
+  }
+}
@@ -0,0 +1,144 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize.Inclusion;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Which values of a property are written, following the semantics of Jackson's
+ * {@link Include}. Policies are resolved when a plan is compiled, so writing a value only
+ * has to check the value itself.
+ */
+enum InclusionPolicy {
+  ALWAYS,
+  NON_NULL,
+  /**
+   * Leaves out nulls and empty references, like {@link Optional#empty()}
+   */
+  NON_ABSENT,
+  /**
+   * Also leaves out empty strings, collections, maps and arrays
+   */
+  NON_EMPTY,
+  /**
+   * Also leaves out zeroes, false and the null character
+   */
+  NON_DEFAULT;
+
+  boolean includes(Object value) {
+    switch(this) {
+      case ALWAYS:
+        return true;
+      case NON_NULL:
+        return value != null;
+      case NON_ABSENT:
+        return value != null && !isAbsent(value);
+      case NON_EMPTY:
+        return value != null && !isAbsent(value) && !isEmpty(value);
+      default:
+        return value != null && !isAbsent(value) && !isEmpty(value) && !isDefault(value);
+    }
+  }
+
+  /**
+   * Whether primitive values are always included, so they can be written without being
+   * boxed for a check first
+   */
+  boolean includesAllPrimitives() {
+    return this != NON_DEFAULT;
+  }
+
+  /**
+   * @return The policy, or null if the default policy applies
+   */
+  static InclusionPolicy of(Include include) {
+    if(include == null) {
+      return null;
+    }
+    switch(include) {
+      case ALWAYS:
+        return ALWAYS;
+      case NON_NULL:
+        return NON_NULL;
+      case NON_ABSENT:
+        return NON_ABSENT;
+      case NON_EMPTY:
+        return NON_EMPTY;
+      case NON_DEFAULT:
+        return NON_DEFAULT;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @return The policy, or null if the default policy applies
+   */
+  @SuppressWarnings("deprecation")
+  static InclusionPolicy of(Inclusion inclusion) {
+    if(inclusion == null) {
+      return null;
+    }
+    switch(inclusion) {
+      case ALWAYS:
+        return ALWAYS;
+      case NON_NULL:
+        return NON_NULL;
+      case NON_EMPTY:
+        return NON_EMPTY;
+      case NON_DEFAULT:
+        return NON_DEFAULT;
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isAbsent(Object value) {
+    if(value instanceof Optional) {
+      return !((Optional<?>) value).isPresent();
+    } else if(value instanceof OptionalInt) {
+      return !((OptionalInt) value).isPresent();
+    } else if(value instanceof OptionalLong) {
+      return !((OptionalLong) value).isPresent();
+    } else if(value instanceof OptionalDouble) {
+      return !((OptionalDouble) value).isPresent();
+    } else if(value instanceof AtomicReference) {
+      return ((AtomicReference<?>) value).get() == null;
+    }
+    return false;
+  }
+
+  private static boolean isEmpty(Object value) {
+    if(value instanceof String) {
+      return ((String) value).isEmpty();
+    } else if(value instanceof Collection) {
+      return ((Collection<?>) value).isEmpty();
+    } else if(value instanceof Map) {
+      return ((Map<?, ?>) value).isEmpty();
+    } else if(value.getClass().isArray()) {
+      return Array.getLength(value) == 0;
+    }
+    return false;
+  }
+
+  private static boolean isDefault(Object value) {
+    if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue() == 0;
+    } else if(value instanceof Double || value instanceof Float) {
+      return ((Number) value).doubleValue() == 0;
+    } else if(value instanceof Boolean) {
+      return !((Boolean) value);
+    } else if(value instanceof Character) {
+      return (Character) value == '\0';
+    }
+    return false;
+  }
+}
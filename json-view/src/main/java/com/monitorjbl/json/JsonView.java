@@ -1,5 +1,7 @@
 package com.monitorjbl.json;
 
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -11,6 +13,15 @@ public class JsonView<T> {
   protected final T value;
   protected final Map<Class<?>, Match> matches = new HashMap<>();
   protected MatcherBehavior matcherBehavior;
+  protected Include inclusion;
+  /**
+   * Bumped by every change to the view itself, changes to its matches are counted by them
+   */
+  private volatile int version;
+  /**
+   * The view as last compiled, reused while neither it nor its matches change
+   */
+  volatile CompiledView.Stamp compiled;
 
   protected JsonView(T value) {
     this.value = value;
@@ -24,13 +35,46 @@ public class JsonView<T> {
     return matches.get(cls);
   }
 
+  Map<Class<?>, Match> getMatches() {
+    return matches;
+  }
+
+  int version() {
+    return version;
+  }
+
+  MatcherBehavior getMatcherBehavior() {
+    return matcherBehavior;
+  }
+
+  Include getInclusion() {
+    return inclusion;
+  }
+
   public JsonView<T> onClass(Class<?> cls, Match match) {
     matches.put(cls, match);
+    version++;
     return this;
   }
 
   public JsonView<T> withMatcherBehavior(MatcherBehavior matcherBehavior) {
     this.matcherBehavior = matcherBehavior;
+    version++;
+    return this;
+  }
+
+  /**
+   * Sets which property values are written throughout this view, in place of the mapper's
+   * default. A {@link Match#withInclusion match's inclusion} and {@code @JsonInclude}
+   * annotations take precedence. Setting an inclusion policy keeps the view from being
+   * handed to Jackson, see {@link JsonViewSerializer#setTranslateSimpleViews}.
+   *
+   * @param inclusion The inclusion policy
+   * @return This view
+   */
+  public JsonView<T> withInclusion(Include inclusion) {
+    this.inclusion = inclusion;
+    version++;
     return this;
   }
 
@@ -40,12 +84,13 @@ public class JsonView<T> {
     if(o == null || getClass() != o.getClass()) return false;
     JsonView<?> jsonView = (JsonView<?>) o;
     return Objects.equals(matches, jsonView.matches) &&
-        matcherBehavior == jsonView.matcherBehavior;
+        matcherBehavior == jsonView.matcherBehavior &&
+        inclusion == jsonView.inclusion;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(matches, matcherBehavior);
+    return Objects.hash(matches, matcherBehavior, inclusion);
   }
 
   public static <E> JsonView<E> with(E value) {
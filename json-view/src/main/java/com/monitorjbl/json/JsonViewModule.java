@@ -23,9 +23,29 @@ public class JsonViewModule extends SimpleModule {
     return this;
   }
 
+  public JsonViewModule withGeneratedWriters() {
+    this.jsonView.setGeneratedWriters(true);
+    return this;
+  }
+
+  public JsonViewModule withUnfilteredSubtreesDelegated() {
+    this.jsonView.setDelegateUnfilteredSubtrees(true);
+    return this;
+  }
+
+  public JsonViewModule withSimpleViewsTranslated() {
+    this.jsonView.setTranslateSimpleViews(true);
+    return this;
+  }
+
   public <E> JsonViewModule registerSerializer(Class<E> cls, JsonSerializer<E> serializer) {
     jsonView.registerCustomSerializer(cls, serializer);
     return this;
   }
 
+  public <E> JsonViewModule registerContainerAdapter(Class<E> cls, ContainerAdapter<E> adapter) {
+    jsonView.registerContainerAdapter(cls, adapter);
+    return this;
+  }
+
 }
@@ -2,44 +2,66 @@ package com.monitorjbl.json;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonBackReference;
+import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyMetadata;
+import com.fasterxml.jackson.databind.PropertyName;
+import com.fasterxml.jackson.databind.SerializationConfig;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.fasterxml.jackson.databind.annotation.JsonSerialize.Inclusion;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.util.ClassUtil;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.monitorjbl.json.CompiledView.PlanCompiler;
+import com.monitorjbl.json.CompiledView.PlanKey;
+import com.monitorjbl.json.Memoizer.FunctionCache;
+import com.monitorjbl.json.PropertyAccessor.Kind;
+import com.monitorjbl.json.ViewPlan.PlannedProperty;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
 import java.math.BigDecimal;
-import java.net.URI;
-import java.net.URL;
-import java.time.temporal.Temporal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Stack;
-import java.util.UUID;
-import java.util.function.Function;
+import java.util.function.BiFunction;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
+import java.util.stream.BaseStream;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -49,30 +71,77 @@ import static java.util.Arrays.asList;
 
 public class JsonViewSerializer extends JsonSerializer<JsonView> {
   public static boolean log = false;
+  /**
+   * Annotations on a property that change how its value is written
+   */
+  private static final Set<Class<? extends Annotation>> VALUE_SHAPING_ANNOTATIONS = new HashSet<>(asList(
+      JsonIgnoreProperties.class, JsonSerialize.class, JsonFormat.class, JsonUnwrapped.class, JsonTypeInfo.class));
   /**
    * Cached results from expensive (pure) methods
    */
   private final Memoizer memoizer;
 
   /**
-   * Map of custom serializers to take into account when serializing fields.
+   * Custom serializers to take into account when serializing fields.
    */
-  private Map<Class<?>, JsonSerializer<Object>> customSerializersMap = null;
+  private final SerializerRegistry<JsonSerializer<Object>> customSerializers = new SerializerRegistry<>();
+  private final SerializerRegistry<ContainerAdapter<Object>> containerAdapters = new SerializerRegistry<>();
 
   private MatcherBehavior defaultMatcherBehavior = CLASS_FIRST;
 
+  private final TierPolicy tiers = new TierPolicy();
+
+  private volatile boolean delegateUnfilteredSubtrees = false;
+
+  private volatile boolean translateSimpleViews = false;
+
   public JsonViewSerializer() {
     this(1024);
   }
 
+  /**
+   * @param maxCacheSize The maximum number of entries kept by each internal cache
+   */
   public JsonViewSerializer(int maxCacheSize) {
     this.memoizer = new Memoizer(maxCacheSize);
   }
 
+  /**
+   * Returns the current statistics of each internal cache, keyed by cache name.
+   *
+   * @return The statistics of every cache
+   */
+  public Map<String, CacheStats> getCacheStats() {
+    Map<String, CacheStats> stats = new LinkedHashMap<>();
+    for(FunctionCache cache : FunctionCache.values()) {
+      stats.put(cache.name(), memoizer.stats(cache));
+    }
+    return stats;
+  }
+
+  /**
+   * Changes the maximum number of entries kept by one internal cache. The names are the
+   * keys returned by {@link #getCacheStats()}.
+   *
+   * @param cacheName The cache to resize
+   * @param maxSize   The new maximum size, at least 1
+   */
+  public void setCacheSize(String cacheName, int maxSize) {
+    FunctionCache cache;
+    try {
+      cache = FunctionCache.valueOf(cacheName);
+    } catch(IllegalArgumentException | NullPointerException e) {
+      throw new IllegalArgumentException("Unknown cache " + cacheName + ", expected one of " + asList(FunctionCache.values()));
+    }
+    memoizer.setMaxSize(cache, maxSize);
+  }
+
   /**
    * Registering custom serializer allows to the JSonView to deal with custom serializations for certains field types.<br>
    * This way you could register for instance a JODA serialization as  a DateTimeSerializer. <br>
    * Thus, when JSonView find a field of that type (DateTime), it will delegate the serialization to the serializer specified.<br>
+   * A serializer registered for a class or interface also applies to its subclasses and implementations, the nearest one wins.
+   * Serializers can be registered while serializations are running, those already running keep the serializers they started with.<br>
    * Example:<br>
    * <code>
    * JsonViewSupportFactoryBean bean = new JsonViewSupportFactoryBean( mapper );
@@ -85,19 +154,13 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
    */
   @SuppressWarnings("unchecked")
   public <T> void registerCustomSerializer(Class<T> cls, JsonSerializer<T> forType) {
-    if(customSerializersMap == null) {
-      customSerializersMap = new HashMap<>();
-    }
-
     if(cls == null) {
       throw new IllegalArgumentException("Class must not be null");
     } else if(cls.equals(JsonView.class)) {
       throw new IllegalArgumentException("Class cannot be " + JsonView.class);
-    } else if(customSerializersMap.containsKey(cls)) {
-      throw new IllegalArgumentException("Class " + cls + " already has a serializer registered (" + customSerializersMap.get(cls) + ")");
     }
 
-    customSerializersMap.put(cls, (JsonSerializer<Object>) forType);
+    customSerializers.register(cls, (JsonSerializer<Object>) forType);
   }
 
   /**
@@ -106,9 +169,36 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
    * @param cls The class type the serializer was registered for
    */
   public void unregisterCustomSerializer(Class<?> cls) {
-    if(customSerializersMap != null) {
-      customSerializersMap.remove(cls);
+    customSerializers.unregister(cls);
+  }
+
+  /**
+   * Registers an adapter that writes a container type, typically a collection of primitives,
+   * as a JSON array or object. Adapters take precedence over the built-in handling of lists
+   * and maps, and like custom serializers apply to subclasses of the registered class.
+   *
+   * @param <T>     The container type
+   * @param cls     The container class
+   * @param adapter The adapter
+   */
+  @SuppressWarnings("unchecked")
+  public <T> void registerContainerAdapter(Class<T> cls, ContainerAdapter<T> adapter) {
+    if(cls == null) {
+      throw new IllegalArgumentException("Class must not be null");
+    } else if(cls.equals(JsonView.class)) {
+      throw new IllegalArgumentException("Class cannot be " + JsonView.class);
     }
+
+    containerAdapters.register(cls, (ContainerAdapter<Object>) adapter);
+  }
+
+  /**
+   * Unregister a previously registered container adapter. @see registerContainerAdapter
+   *
+   * @param cls The class the adapter was registered for
+   */
+  public void unregisterContainerAdapter(Class<?> cls) {
+    containerAdapters.unregister(cls);
   }
 
   /**
@@ -121,297 +211,997 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
     this.defaultMatcherBehavior = defaultMatcherBehavior;
   }
 
+  /**
+   * Enables or disables generated writers. When enabled, each class written under a view
+   * gets a writer class generated at runtime that reads and writes the included properties
+   * in straight-line code. Classes that can't have one generated are written as usual.
+   *
+   * Writers are only generated for classes written often enough under the same view, see
+   * {@link #setGeneratedWriterThreshold(int)}.
+   *
+   * @param generatedWriters Whether to generate writers
+   */
+  public void setGeneratedWriters(boolean generatedWriters) {
+    tiers.generateWriters = generatedWriters;
+  }
+
+  /**
+   * Enables or disables writing unfiltered parts of an object graph with Jackson's own
+   * serializers. When enabled, objects that nothing in the view can apply to, down to the
+   * last nested value, are handed to Jackson as a whole. Those objects then get everything
+   * Jackson offers, like mixins and serializers from other modules, but are also written
+   * the way Jackson finds their properties, which can differ from how this serializer
+   * finds them. Only used while no custom serializers are registered.
+   *
+   * @param delegate Whether to delegate unfiltered objects to Jackson
+   */
+  public void setDelegateUnfilteredSubtrees(boolean delegate) {
+    this.delegateUnfilteredSubtrees = delegate;
+  }
+
+  /**
+   * Enables or disables writing simple views with Jackson alone. A view is simple if its
+   * matches only include and exclude properties of the matched class by name, without
+   * wildcards, nested paths or transforms, and classes are matched first. Such views are
+   * translated into Jackson property filters, and written with serializers from a copy of
+   * the mapper under the configuration of the call. Other views, views of streams, and
+   * every view while custom serializers are registered, are written as usual.
+   * <p>
+   * Jackson finds properties its own way, which can differ from how this serializer finds
+   * them, and it doesn't let includes bring back properties annotated with
+   * {@code @JsonIgnore}. The copy of a mapper is made the first time it writes a simple
+   * view, so the mapper shouldn't be reconfigured afterwards.
+   *
+   * @param translate Whether to translate simple views
+   */
+  public void setTranslateSimpleViews(boolean translate) {
+    this.translateSimpleViews = translate;
+  }
+
+  /**
+   * Sets how many times a class has to be written under the same view before the work of
+   * filtering its properties is cached. Views used only a handful of times are not worth
+   * keeping in memory. Defaults to {@value TierPolicy#DEFAULT_PLAN_THRESHOLD}.
+   *
+   * @param uses The number of uses, at least 1
+   */
+  public void setPlanThreshold(int uses) {
+    if(uses < 1) {
+      throw new IllegalArgumentException("Threshold must be at least 1");
+    }
+    tiers.planThreshold = uses;
+  }
+
+  /**
+   * Sets how many times a class has to be written under the same view before a writer is
+   * generated for it, if generated writers are enabled. Defaults to
+   * {@value TierPolicy#DEFAULT_WRITER_THRESHOLD}.
+   *
+   * @param uses The number of uses, at least 1
+   */
+  public void setGeneratedWriterThreshold(int uses) {
+    if(uses < 1) {
+      throw new IllegalArgumentException("Threshold must be at least 1");
+    }
+    tiers.writerThreshold = uses;
+  }
+
+  /**
+   * Sets how many lookups a view serves between checks for classes that have gone cold
+   * under it. Those are demoted, and dropped if they weren't used at all. Defaults to
+   * {@value TierPolicy#DEFAULT_SWEEP_INTERVAL}.
+   *
+   * @param lookups The number of lookups, at least 1
+   */
+  public void setTierSweepInterval(int lookups) {
+    if(lookups < 1) {
+      throw new IllegalArgumentException("Interval must be at least 1");
+    }
+    tiers.sweepInterval = lookups;
+  }
+
   @Override
   public void serialize(JsonView result, JsonGenerator jgen, SerializerProvider serializers) throws IOException {
-    new JsonWriter(serializers, jgen, result).write(null, result.getValue());
+    CompiledView view = compileView(result);
+    if(view.translatable && translateSimpleViews && jgen.getCodec() instanceof ObjectMapper && serializers.getConfig() != null
+        && customSerializers.snapshot().isEmpty() && containerAdapters.snapshot().isEmpty() && !isStream(result.getValue())) {
+      ObjectMapper mapper = (ObjectMapper) jgen.getCodec();
+      Optional<ObjectMapper> filtering = memoizer.filteringMapper(mapper, () -> ViewFilters.filteringCopy(mapper));
+      if(filtering.isPresent()) {
+        writeFiltered(view, filtering.get(), result.getValue(), jgen, serializers);
+        return;
+      }
+    }
+    new JsonWriter(serializers, jgen, result, view).write(null, result.getValue());
+  }
+
+  private static boolean isStream(Object value) {
+    return value != null && ValueType.of(value.getClass()) == ValueType.STREAM;
+  }
+
+  /**
+   * Writes a value with Jackson under the view's filters. Serializers come from the mapper's
+   * filtering copy, but the call's own configuration (its active view, attributes and
+   * features) is kept, and the value is written in place like any other, without flushing.
+   */
+  private void writeFiltered(CompiledView view, ObjectMapper filtering, Object value, JsonGenerator jgen, SerializerProvider serializers) throws IOException {
+    ViewFilters filters = memoizer.viewFilters(view, () -> new ViewFilters(view));
+    SerializationConfig config = serializers.getConfig()
+        .with(filtering.getSerializationConfig().getAnnotationIntrospector())
+        .withFilters(filters);
+    DefaultSerializerProvider provider = ((DefaultSerializerProvider) filtering.getSerializerProvider()).createInstance(config, filtering.getSerializerFactory());
+    provider.defaultSerializeValue(value, jgen);
+  }
+
+  /**
+   * Prepares to write a view a bounded amount at a time, instead of all at once like
+   * {@link #serialize}. Nothing is written until the returned serialization is resumed.
+   * Object graphs of any depth can be written this way.
+   *
+   * @param result      The view to write
+   * @param jgen        The generator to write to
+   * @param serializers The provider used for values handed off to Jackson
+   * @return The serialization, to be resumed until it's done
+   */
+  public ResumableSerialization startSerialization(JsonView<?> result, JsonGenerator jgen, SerializerProvider serializers) {
+    return new ResumableSerialization(new JsonWriter(serializers, jgen, result), result.getValue());
+  }
+
+  /**
+   * Returns the canonical compiled form of the view's shape, so that plans compiled for an
+   * earlier view with the same matches are reused. The result is remembered on the view,
+   * so writing the same view again doesn't compile it again unless it was changed.
+   */
+  CompiledView compileView(JsonView<?> view) {
+    CompiledView.Stamp stamp = view.compiled;
+    if(stamp != null && stamp.isCurrent(this, view, defaultMatcherBehavior)) {
+      return stamp.view();
+    }
+
+    stamp = new CompiledView.Stamp(this, view);
+    CompiledView compiled = new CompiledView(view, defaultMatcherBehavior, tiers);
+    view.compiled = stamp.compiledTo(memoizer.compiledView(compiled, () -> compiled));
+    return stamp.view();
+  }
+
+  /**
+   * One container being written by a {@link JsonWriter}: an object, an array or a map.
+   * Besides how far along the container is, a frame holds the context its children are
+   * written in, which becomes the writer's state again whenever the frame is on top.
+   */
+  static class Frame {
+    ValueType type;
+    Match match;
+    PathNode path;
+    AccessibleProperty referringField;
+
+    // The object, array or map being written
+    Object value;
+    // The next property or element
+    int index;
+    ViewPlan plan;
+    GeneratedWriter generated;
+    Iterator<?> iterator;
+    // Closed once the frame is popped or abandoned
+    AutoCloseable closeable;
+    // Whether the match can tell a map's entries apart by key
+    boolean keyed;
+
+    /**
+     * Drops the references to what was written, frames are kept around for reuse
+     */
+    void clear() {
+      value = null;
+      plan = null;
+      generated = null;
+      iterator = null;
+      closeable = null;
+    }
   }
 
-  class JsonWriter {
-    Stack<String> path = new Stack<>();
-    String currentPath = "";
+  class JsonWriter implements PlanCompiler, ContainerWriter {
+    PathNode path;
     Match currentMatch = null;
     AccessibleProperty referringField = null;
 
     final SerializerProvider serializerProvider;
     final JsonGenerator jgen;
     final JsonView result;
+    final CompiledView view;
+    /**
+     * The mapper's inclusion policy, for properties that aren't annotated with one
+     */
+    final InclusionPolicy defaultInclusion;
+    /**
+     * The custom serializers registered when writing started
+     */
+    final SerializerRegistry.Snapshot<JsonSerializer<Object>> registered = customSerializers.snapshot();
+    final SerializerRegistry.Snapshot<ContainerAdapter<Object>> adapters = containerAdapters.snapshot();
+
+    /**
+     * The containers currently being written, innermost last. Nested values are written by
+     * pushing a frame rather than by recursing, so the depth of an object graph is only
+     * limited by memory, and writing can stop between any two values and carry on later.
+     * Frames are allocated the first time a depth is reached and reused from then on.
+     */
+    private Frame[] frames = new Frame[16];
+    private int depth;
+    /**
+     * The last leaf class written with Jackson and its serializer, since values of the
+     * same class tend to come in runs
+     */
+    private Class<?> leafClass;
+    private JsonSerializer<Object> leafSerializer;
+    /**
+     * The same for map keys that aren't strings
+     */
+    private Class<?> keyClass;
+    private JsonSerializer<Object> keySerializer;
+    /**
+     * Reused for every plan lookup
+     */
+    private final PlanKey planKey = new PlanKey();
 
     JsonWriter(SerializerProvider serializerProvider, JsonGenerator jgen, JsonView result) {
+      this(serializerProvider, jgen, result, compileView(result));
+    }
+
+    /**
+     * For callers that have already compiled the view
+     */
+    JsonWriter(SerializerProvider serializerProvider, JsonGenerator jgen, JsonView result, CompiledView view) {
       this.serializerProvider = serializerProvider;
       this.jgen = jgen;
       this.result = result;
+      this.view = view;
+      this.path = view.root;
+
+      InclusionPolicy inclusion = serializerProvider.getConfig() == null ? null : InclusionPolicy.of(serializerProvider.getConfig().getSerializationInclusion());
+      this.defaultInclusion = inclusion == null ? InclusionPolicy.ALWAYS : inclusion;
     }
 
-    //internal use only to encapsulate what the current state was
-    private JsonWriter(JsonGenerator jgen, JsonView result, Match currentMatch, SerializerProvider serializerProvider) {
-      this.jgen = jgen;
-      this.result = result;
-      this.currentMatch = currentMatch;
-      this.serializerProvider = serializerProvider;
+    /**
+     * Writes a value and everything nested in it, leaving the writer's state as it was
+     */
+    void write(String fieldName, Object value) throws IOException {
+      writeFully(fieldName == null ? path : path.child(fieldName), value);
     }
 
-    //internal use only to encapsulate what the current state was
-    private JsonWriter(JsonGenerator jgen, JsonView result, Match currentMatch,
-                       String currentPath, Stack<String> path, AccessibleProperty referringField, SerializerProvider serializerProvider) {
-      this.jgen = jgen;
-      this.result = result;
-      this.currentMatch = currentMatch;
-      this.currentPath = currentPath;
-      this.referringField = referringField;
-      this.path = path;
-      this.serializerProvider = serializerProvider;
+    private void writeFully(PathNode path, Object value) throws IOException {
+      writeFully(path, currentMatch, referringField, value);
     }
 
-    boolean writePrimitive(Object obj) throws IOException {
-      if(obj instanceof String) {
-        jgen.writeString((String) obj);
-      } else if(obj instanceof Integer) {
-        jgen.writeNumber((Integer) obj);
-      } else if(obj instanceof Long) {
-        jgen.writeNumber((Long) obj);
-      } else if(obj instanceof Short) {
-        jgen.writeNumber((Short) obj);
-      } else if(obj instanceof Double) {
-        jgen.writeNumber((Double) obj);
-      } else if(obj instanceof Float) {
-        jgen.writeNumber((Float) obj);
-      } else if(obj instanceof Character) {
-        jgen.writeNumber((Character) obj);
-      } else if(obj instanceof Byte) {
-        jgen.writeNumber((Byte) obj);
-      } else if(obj instanceof Boolean) {
-        jgen.writeBoolean((Boolean) obj);
-      } else if(obj == null) {
+    private void writeFully(PathNode path, Match match, AccessibleProperty referringField, Object value) throws IOException {
+      PathNode savedPath = this.path;
+      Match savedMatch = currentMatch;
+      AccessibleProperty savedReferringField = this.referringField;
+
+      int base = depth;
+      try {
+        start(path, match, referringField, value);
+        run(base, Integer.MAX_VALUE);
+      } catch(Throwable e) {
+        abandon(base, e);
+        throw e;
+      }
+
+      this.path = savedPath;
+      currentMatch = savedMatch;
+      this.referringField = savedReferringField;
+    }
+
+    /**
+     * Starts writing a value in the given context. Containers are opened and pushed as a
+     * frame to be filled in by later steps, anything else is written right away. If
+     * writing fails, the writer is left as it was at the point of failure; it isn't meant
+     * to be used again after that.
+     */
+    @SuppressWarnings("unchecked")
+    void start(PathNode path, Match match, AccessibleProperty referringField, Object value) throws IOException {
+      if(value == null) {
         jgen.writeNull();
-      } else if(obj instanceof BigDecimal) {
-        jgen.writeNumber((BigDecimal) obj);
-      } else {
-        return false;
+        return;
+      }
+
+      ContainerAdapter<Object> adapter = adapters.find(value.getClass());
+      if(adapter != null) {
+        writeAdapted(adapter, path, match, referringField, value);
+        return;
+      }
+
+      ValueType type = ValueType.of(value.getClass());
+      switch(type) {
+        case ARRAY:
+          jgen.writeStartArray(((Object[]) value).length);
+          push(type, path, match, referringField).value = value;
+          break;
+        case LIST:
+          jgen.writeStartArray(((List<?>) value).size());
+          push(type, path, match, referringField).value = value;
+          break;
+        case ITERABLE:
+          if(value instanceof Collection) {
+            jgen.writeStartArray(((Collection<?>) value).size());
+          } else {
+            jgen.writeStartArray();
+          }
+          push(type, path, match, referringField).iterator = ((Iterable<Object>) value).iterator();
+          break;
+        case STREAM: {
+          // Stepped through like any other iterable, one element at a time
+          jgen.writeStartArray();
+          Frame frame = push(ValueType.ITERABLE, path, match, referringField);
+          frame.iterator = iteratorOf(value);
+          frame.closeable = value instanceof AutoCloseable ? (AutoCloseable) value : null;
+          break;
+        }
+        case MAP: {
+          jgen.writeStartObject();
+          Frame frame = push(type, path, match, referringField);
+          frame.iterator = ((Map<Object, Object>) value).entrySet().iterator();
+          frame.keyed = isKeyed();
+          break;
+        }
+        case OBJECT: {
+          if(isRuleFree(value.getClass(), path, match, referringField)) {
+            writeWithJackson(value);
+            break;
+          }
+
+          jgen.writeStartObject();
+          this.path = path;
+          this.currentMatch = match;
+          this.referringField = referringField;
+          ViewPlan plan = getViewPlan(value.getClass());
+
+          Frame frame = push(type, path, plan.match, referringField);
+          frame.value = value;
+          frame.plan = plan;
+          frame.generated = plan.generatedWriter();
+          break;
+        }
+        default:
+          writeAs(type, value);
       }
-      return true;
     }
 
-    boolean writeSpecial(Object obj) throws IOException {
-      if(obj instanceof Date) {
-        serializerProvider.defaultSerializeDateValue((Date) obj, jgen);
-      } else if(obj instanceof Temporal) {
-        serializerProvider.defaultSerializeValue(obj, jgen);
-      } else if(obj instanceof URL) {
-        jgen.writeString(obj.toString());
-      } else if(obj instanceof URI) {
-        jgen.writeString(obj.toString());
-      } else if(obj instanceof UUID) {
-        jgen.writeString(obj.toString());
-      } else if(obj instanceof Class) {
-        jgen.writeString(((Class) obj).getCanonicalName());
+    /**
+     * Adapted containers are written in full, in the context they were started in
+     */
+    private void writeAdapted(ContainerAdapter<Object> adapter, PathNode path, Match match, AccessibleProperty referringField, Object value) throws IOException {
+      PathNode savedPath = this.path;
+      Match savedMatch = currentMatch;
+      AccessibleProperty savedReferringField = this.referringField;
+      this.path = path;
+      this.currentMatch = match;
+      this.referringField = referringField;
+
+      if(adapter.isMap()) {
+        jgen.writeStartObject();
+        adapter.write(value, this);
+        jgen.writeEndObject();
       } else {
-        return false;
+        int size = adapter.size(value);
+        if(size < 0) {
+          jgen.writeStartArray();
+        } else {
+          jgen.writeStartArray(size);
+        }
+        adapter.write(value, this);
+        jgen.writeEndArray();
       }
-      return true;
+
+      this.path = savedPath;
+      currentMatch = savedMatch;
+      this.referringField = savedReferringField;
     }
 
-    boolean writeEnum(Object obj) throws IOException {
-      if(obj.getClass().isEnum()) {
-        jgen.writeString(((Enum) obj).name());
+    @Override
+    public JsonGenerator generator() {
+      return jgen;
+    }
+
+    @Override
+    public void writeElement(Object value) throws IOException {
+      writeFully(path, value);
+    }
+
+    @Override
+    public void writeEntry(Object key, Object value) throws IOException {
+      PathNode entryPath = writeEntryKey(isKeyed(), key);
+      if(entryPath != null) {
+        writeFully(entryPath, currentMatch, null, value);
+      }
+    }
+
+    /**
+     * Whether any rule of the current match applies below the map at the current path. If
+     * none does, keys don't need to be matched, and values all share the map's path so
+     * they also share plans.
+     */
+    private boolean isKeyed() {
+      return currentMatch != null && CompiledView.appliesBelow(currentMatch, path);
+    }
+
+    /**
+     * Writes the key of a map entry, unless the entry is excluded. Map keys are path
+     * segments below the map, matched like property names by the name they're written as.
+     *
+     * @return The path to write the entry's value at, or null if the entry is excluded
+     */
+    private PathNode writeEntryKey(boolean keyed, Object key) throws IOException {
+      if(!keyed) {
+        writeKey(key);
+        return path;
+      }
+
+      String segment = keyName(key);
+      int included = containsMatchingPattern(currentMatch.getIncludeMatcher(), path, segment, true);
+      int excluded = containsMatchingPattern(currentMatch.getExcludeMatcher(), path, segment, false);
+      // The same ternary logic as for fields, see fieldAllowed
+      if(included == 1 || (excluded != 1 && (included == 0 || excluded != 0))) {
+        jgen.writeFieldName(segment);
+        return path.child(segment);
+      }
+      return null;
+    }
+
+    /**
+     * Writes a map key the way Jackson would, with the key serializer for its class
+     */
+    private void writeKey(Object key) throws IOException {
+      if(key instanceof String) {
+        jgen.writeFieldName((String) key);
       } else {
-        return false;
+        keySerializerFor(key).serialize(key, jgen, serializerProvider);
       }
-      return true;
     }
 
-    @SuppressWarnings("unchecked")
-    boolean writeList(Object obj) throws IOException {
-      if(obj instanceof List || obj instanceof Set || obj.getClass().isArray()) {
-        Iterable iter;
-        if(obj.getClass().isArray()) {
-          if(obj instanceof byte[]) {
-            jgen.writeBinary((byte[]) obj);
+    /**
+     * Returns the name a map key is written as, by writing it to a buffer first
+     */
+    private String keyName(Object key) throws IOException {
+      if(key instanceof String) {
+        return (String) key;
+      }
+
+      TokenBuffer buffer = new TokenBuffer(jgen.getCodec(), false);
+      buffer.writeStartObject();
+      keySerializerFor(key).serialize(key, buffer, serializerProvider);
+      buffer.writeEndObject();
+      try(JsonParser parser = buffer.asParser()) {
+        parser.nextToken();
+        parser.nextToken();
+        return parser.getCurrentName();
+      }
+    }
+
+    private JsonSerializer<Object> keySerializerFor(Object key) {
+      Class<?> cls = key == null ? Void.class : key.getClass();
+      if(cls != keyClass) {
+        keySerializer = keySerializer(cls);
+        keyClass = cls;
+      }
+      return keySerializer;
+    }
+
+    private JsonSerializer<Object> keySerializer(Class<?> cls) {
+      return memoizer.keySerializer(cls, serializerProvider.getConfig(), () -> {
+        try {
+          JavaType type = serializerProvider.constructType(cls == Void.class ? Object.class : cls);
+          return cls == Void.class ? serializerProvider.findNullKeySerializer(type, null) : serializerProvider.findKeySerializer(type, null);
+        } catch(JsonMappingException e) {
+          throw new RuntimeException(e);
+        }
+      });
+    }
+
+    /**
+     * Jackson writes a delegated subtree as a root value, so a subtree is only delegated when
+     * the field it was reached through doesn't change how it's written
+     */
+    private boolean isRuleFree(Class<?> cls, PathNode path, Match match, AccessibleProperty referringField) {
+      return delegateUnfilteredSubtrees && registered.isEmpty() && adapters.isEmpty() && serializerProvider.getConfig() != null
+          && (referringField == null || !shapesValue(referringField))
+          && view.isRuleFree(planKey.set(cls, path, match, null), serializerProvider.getConfig());
+    }
+
+    private boolean shapesValue(AccessibleProperty property) {
+      if(property.annotations != null) {
+        for(Annotation a : property.annotations) {
+          if(VALUE_SHAPING_ANNOTATIONS.contains(a.annotationType())) {
             return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Takes steps until the frames above {@code base} are done, or {@code maxSteps} steps
+     * were taken. A step writes the next value of the innermost container, or closes it;
+     * generated writers write up to the next property that opens a container in one step.
+     *
+     * @return Whether everything above {@code base} has been written
+     */
+    boolean run(int base, int maxSteps) throws IOException {
+      for(int i = 0; i < maxSteps && depth > base; i++) {
+        step();
+      }
+      return depth <= base;
+    }
+
+    private void step() throws IOException {
+      Frame frame = frames[depth - 1];
+      switch(frame.type) {
+        case OBJECT: {
+          PlannedProperty[] properties = frame.plan.properties;
+          if(frame.index == properties.length) {
+            jgen.writeEndObject();
+            pop();
+          } else if(frame.generated != null) {
+            frame.index = frame.generated.write(frame.value, jgen, this, frame.index);
           } else {
-            iter = convertArray(obj);
+            startProperty(properties[frame.index++], frame.value);
           }
-        } else {
-          iter = (Iterable<Object>) obj;
+          break;
+        }
+        case ARRAY: {
+          Object[] arr = (Object[]) frame.value;
+          if(frame.index < arr.length) {
+            start(path, currentMatch, referringField, arr[frame.index++]);
+          } else {
+            jgen.writeEndArray();
+            pop();
+          }
+          break;
+        }
+        case LIST: {
+          List<?> list = (List<?>) frame.value;
+          if(frame.index < list.size()) {
+            start(path, currentMatch, referringField, list.get(frame.index++));
+          } else {
+            jgen.writeEndArray();
+            pop();
+          }
+          break;
         }
+        case ITERABLE:
+          if(frame.iterator.hasNext()) {
+            start(path, currentMatch, referringField, frame.iterator.next());
+          } else {
+            jgen.writeEndArray();
+            pop();
+          }
+          break;
+        case MAP:
+          if(frame.iterator.hasNext()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) frame.iterator.next();
+            PathNode entryPath = writeEntryKey(frame.keyed, entry.getKey());
+            if(entryPath != null) {
+              start(entryPath, currentMatch, null, entry.getValue());
+            }
+          } else {
+            jgen.writeEndObject();
+            pop();
+          }
+          break;
+        default:
+          throw new IllegalStateException(frame.type + " is not a container");
+      }
+    }
+
+    private Frame push(ValueType type, PathNode path, Match match, AccessibleProperty referringField) {
+      if(depth == frames.length) {
+        frames = Arrays.copyOf(frames, depth * 2);
+      }
+      Frame frame = frames[depth];
+      if(frame == null) {
+        frame = frames[depth] = new Frame();
+      }
+      frame.type = type;
+      frame.index = 0;
+      frame.path = this.path = path;
+      frame.match = this.currentMatch = match;
+      frame.referringField = this.referringField = referringField;
+      depth++;
+      return frame;
+    }
+
+    private void pop() throws IOException {
+      Frame popped = frames[--depth];
+      AutoCloseable closeable = popped.closeable;
+      popped.clear();
+      if(depth > 0) {
+        Frame frame = frames[depth - 1];
+        path = frame.path;
+        currentMatch = frame.match;
+        referringField = frame.referringField;
+      }
 
-        jgen.writeStartArray();
-        for(Object o : iter) {
-          new JsonWriter(jgen, result, currentMatch, currentPath, path, referringField, serializerProvider).write(null, o);
+      if(closeable != null) {
+        try {
+          closeable.close();
+        } catch(IOException | RuntimeException e) {
+          throw e;
+        } catch(Exception e) {
+          throw new RuntimeException(e);
         }
-        jgen.writeEndArray();
-      } else {
-        return false;
       }
-      return true;
     }
 
-    @SuppressWarnings("unchecked")
-    Iterable convertArray(Object obj) {
-      Iterable iter;
-      if(obj instanceof int[]) {
-        int[] arr = (int[]) obj;
-        iter = new ArrayList<>();
-        for(int v : arr) {
-          ((List<Integer>) iter).add(v);
-        }
-      } else if(obj instanceof double[]) {
-        double[] arr = (double[]) obj;
-        iter = new ArrayList<>();
-        for(double v : arr) {
-          ((List<Double>) iter).add(v);
-        }
-      } else if(obj instanceof float[]) {
-        float[] arr = (float[]) obj;
-        iter = new ArrayList<>();
-        for(float v : arr) {
-          ((List<Float>) iter).add(v);
-        }
-      } else if(obj instanceof long[]) {
-        long[] arr = (long[]) obj;
-        iter = new ArrayList<>();
-        for(long v : arr) {
-          ((List<Long>) iter).add(v);
-        }
-      } else if(obj instanceof short[]) {
-        short[] arr = (short[]) obj;
-        iter = new ArrayList<>();
-        for(short v : arr) {
-          ((List<Short>) iter).add(v);
-        }
-      } else if(obj instanceof char[]) {
-        char[] arr = (char[]) obj;
-        iter = new ArrayList<>();
-        for(char v : arr) {
-          ((List<Character>) iter).add(v);
-        }
-      } else if(obj instanceof boolean[]) {
-        boolean[] arr = (boolean[]) obj;
-        iter = new ArrayList<>();
-        for(boolean v : arr) {
-          ((List<Boolean>) iter).add(v);
+    /**
+     * Drops the frames above {@code base} after writing failed, closing any streams they
+     * were consuming. Exceptions from closing are added to the failure.
+     */
+    void abandon(int base, Throwable failure) {
+      while(depth > base) {
+        Frame frame = frames[--depth];
+        if(frame.closeable != null) {
+          try {
+            frame.closeable.close();
+          } catch(Exception e) {
+            failure.addSuppressed(e);
+          }
         }
-      } else {
-        iter = asList((Object[]) obj);
+        frame.clear();
       }
-      return iter;
     }
 
-    @SuppressWarnings("unchecked")
+    private Iterator<?> iteratorOf(Object value) {
+      if(value instanceof BaseStream) {
+        return ((BaseStream<?, ?>) value).iterator();
+      } else if(value instanceof Spliterator) {
+        return Spliterators.iterator((Spliterator<?>) value);
+      }
+      return (Iterator<?>) value;
+    }
+
+    boolean writePrimitive(Object obj) throws IOException {
+      if(obj == null) {
+        jgen.writeNull();
+        return true;
+      }
+      return writeIf(ValueType.Category.PRIMITIVE, obj);
+    }
+
+    boolean writeSpecial(Object obj) throws IOException {
+      return writeIf(ValueType.Category.SPECIAL, obj);
+    }
+
+    boolean writeEnum(Object obj) throws IOException {
+      return writeIf(ValueType.Category.ENUM, obj);
+    }
+
+    boolean writeList(Object obj) throws IOException {
+      return writeIf(ValueType.Category.LIST, obj);
+    }
+
     boolean writeMap(Object obj) throws IOException {
-      if(obj instanceof Map) {
-        Map<Object, Object> map = (Map<Object, Object>) obj;
+      return writeIf(ValueType.Category.MAP, obj);
+    }
 
-        jgen.writeStartObject();
-        for(Object key : map.keySet()) {
-          jgen.writeFieldName(key.toString());
-          new JsonWriter(jgen, result, currentMatch, serializerProvider).write(null, map.get(key));
-        }
-        jgen.writeEndObject();
-      } else {
+    private boolean writeIf(ValueType.Category category, Object obj) throws IOException {
+      ValueType type = ValueType.of(obj.getClass());
+      if(type.category != category) {
         return false;
       }
+      writeAs(type, obj);
       return true;
     }
 
-    @SuppressWarnings("unchecked")
-    void writeObject(Object obj) throws IOException {
-      jgen.writeStartObject();
+    /**
+     * Writes a non-null value the way its type calls for. Containers are written in full.
+     */
+    void writeAs(ValueType type, Object obj) throws IOException {
+      switch(type) {
+        case STRING:
+          jgen.writeString((String) obj);
+          break;
+        case INTEGER:
+          jgen.writeNumber((Integer) obj);
+          break;
+        case LONG:
+          jgen.writeNumber((Long) obj);
+          break;
+        case SHORT:
+          jgen.writeNumber((Short) obj);
+          break;
+        case DOUBLE:
+          jgen.writeNumber((Double) obj);
+          break;
+        case FLOAT:
+          jgen.writeNumber((Float) obj);
+          break;
+        case CHARACTER:
+          jgen.writeNumber((Character) obj);
+          break;
+        case BYTE:
+          jgen.writeNumber((Byte) obj);
+          break;
+        case BOOLEAN:
+          jgen.writeBoolean((Boolean) obj);
+          break;
+        case BIG_DECIMAL:
+          jgen.writeNumber((BigDecimal) obj);
+          break;
+        case DATE:
+          serializerProvider.defaultSerializeDateValue((Date) obj, jgen);
+          break;
+        case TEMPORAL:
+        case JACKSON:
+          writeWithJackson(obj);
+          break;
+        case TO_STRING:
+          jgen.writeString(obj.toString());
+          break;
+        case CLASS:
+          jgen.writeString(((Class) obj).getCanonicalName());
+          break;
+        case ENUM: {
+          SerializedString name = EnumNames.of((Enum<?>) obj);
+          if(name != null) {
+            jgen.writeString(name);
+          } else {
+            writeWithJackson(obj);
+          }
+          break;
+        }
+        case BYTE_ARRAY:
+          jgen.writeBinary((byte[]) obj);
+          break;
+        case INT_ARRAY:
+        case LONG_ARRAY:
+        case DOUBLE_ARRAY:
+        case FLOAT_ARRAY:
+        case SHORT_ARRAY:
+        case CHAR_ARRAY:
+        case BOOLEAN_ARRAY:
+          writePrimitiveArray(type, obj);
+          break;
+        default:
+          writeFully(path, obj);
+      }
+    }
 
-      List<AccessibleProperty> fields = getAccessibleProperties(obj.getClass());
+    /**
+     * Writes a value with the serializer Jackson would use for it at the root
+     */
+    void writeWithJackson(Object obj) throws IOException {
+      Class<?> cls = obj.getClass();
+      if(cls != leafClass) {
+        leafSerializer = leafSerializer(cls);
+        leafClass = cls;
+      }
+      leafSerializer.serialize(obj, jgen, serializerProvider);
+    }
 
-      for(AccessibleProperty property : fields) {
+    /**
+     * Jackson's serializer for a leaf class is looked up once per class and config
+     */
+    private JsonSerializer<Object> leafSerializer(Class<?> cls) {
+      return memoizer.leafSerializer(cls, serializerProvider.getConfig(), () -> {
         try {
-          //if the field has a serializer annotation on it, serialize with it
-          if(fieldAllowed(property, obj.getClass())) {
-            Object val = readField(obj, property);
-            if(!valueAllowed(property, val, obj.getClass())) {
-              continue;
-            }
-
-            String name = getFieldName(property);
-            jgen.writeFieldName(name);
-
-            JsonSerializer fieldSerializer = annotatedWithJsonSerialize(property);
-            if(fieldSerializer != null) {
-              fieldSerializer.serialize(val, jgen, serializerProvider);
-            } else if(customSerializersMap != null && val != null) {
-              JsonSerializer<Object> serializer = customSerializersMap.get(val.getClass());
-              if(serializer != null) {
-                serializer.serialize(val, jgen, serializerProvider);
-              } else {
-                new JsonWriter(jgen, result, currentMatch, currentPath, path, property, serializerProvider).write(name, val);
-              }
-            } else if(val instanceof JsonNode) {
-              // Let Jackson deal with these, they're special
-              serializerProvider.defaultSerializeValue(val, jgen);
-            } else {
-              new JsonWriter(jgen, result, currentMatch, currentPath, path, property, serializerProvider).write(name, val);
-            }
-          }
-        } catch(IllegalArgumentException | IllegalAccessException e) {
+          return serializerProvider.findTypedValueSerializer(cls, true, null);
+        } catch(JsonMappingException e) {
           throw new RuntimeException(e);
         }
+      });
+    }
+
+    /**
+     * Primitive arrays are written element by element straight from the array, there's
+     * no matching or nesting to deal with inside them
+     */
+    void writePrimitiveArray(ValueType type, Object obj) throws IOException {
+      switch(type) {
+        case INT_ARRAY: {
+          int[] arr = (int[]) obj;
+          jgen.writeArray(arr, 0, arr.length);
+          return;
+        }
+        case LONG_ARRAY: {
+          long[] arr = (long[]) obj;
+          jgen.writeArray(arr, 0, arr.length);
+          return;
+        }
+        case DOUBLE_ARRAY: {
+          double[] arr = (double[]) obj;
+          jgen.writeArray(arr, 0, arr.length);
+          return;
+        }
+        default:
       }
 
-      jgen.writeEndObject();
+      jgen.writeStartArray(Array.getLength(obj));
+      if(type == ValueType.FLOAT_ARRAY) {
+        for(float v : (float[]) obj) {
+          jgen.writeNumber(v);
+        }
+      } else if(type == ValueType.SHORT_ARRAY) {
+        for(short v : (short[]) obj) {
+          jgen.writeNumber(v);
+        }
+      } else if(type == ValueType.CHAR_ARRAY) {
+        for(char v : (char[]) obj) {
+          jgen.writeNumber(v);
+        }
+      } else if(type == ValueType.BOOLEAN_ARRAY) {
+        for(boolean v : (boolean[]) obj) {
+          jgen.writeBoolean(v);
+        }
+      } else {
+        throw new IllegalArgumentException(type + " is not a primitive array");
+      }
+      jgen.writeEndArray();
     }
 
-    boolean valueAllowed(AccessibleProperty property, Object value, Class cls) {
-      Include defaultInclude = serializerProvider.getConfig() == null ? Include.ALWAYS : serializerProvider.getConfig().getSerializationInclusion();
-      JsonInclude jsonInclude = getAnnotation(property, JsonInclude.class);
-      JsonSerialize jsonSerialize = getAnnotation(cls, JsonSerialize.class);
+    /**
+     * Writes a property of the object on top, or opens its value if it's a container
+     *
+     * @return Whether a frame was pushed for the value
+     */
+    boolean startProperty(PlannedProperty planned, Object obj) throws IOException {
+      // Primitives are never null, canWritePrimitive checks they aren't left out as defaults
+      if(canWritePrimitive(planned)) {
+        jgen.writeFieldName(planned.serializedName);
+        planned.writePrimitive(obj, jgen);
+        return false;
+      }
+      return startValue(planned, obj, planned.read(obj));
+    }
 
-      // Make sure local annotations win over global ones
-      if(jsonInclude != null && jsonInclude.value() == Include.NON_NULL && value == null) {
+    /**
+     * Like {@link #startProperty}, for a value that has already been read (and transformed)
+     */
+    boolean startValue(PlannedProperty planned, Object obj, Object val) throws IOException {
+      if(!valueAllowed(planned, val)) {
         return false;
       }
 
-      return value != null
-          || (defaultInclude == Include.ALWAYS && jsonSerialize == null)
-          || (jsonSerialize != null && jsonSerialize.include() == Inclusion.ALWAYS);
+      jgen.writeFieldName(planned.serializedName);
+
+      JsonSerializer<Object> serializer;
+      //if the field has a serializer annotation on it, serialize with it
+      if(planned.serializer != null) {
+        planned.serializer.serialize(val, jgen, serializerProvider);
+      } else if(val != null && (serializer = registered.find(val.getClass())) != null) {
+        serializer.serialize(val, jgen, serializerProvider);
+      } else if(val instanceof JsonNode) {
+        // Let Jackson deal with these, they're special
+        serializerProvider.defaultSerializeValue(val, jgen);
+      } else {
+        return startNested(planned, val);
+      }
+      return false;
+    }
+
+    private boolean startNested(PlannedProperty planned, Object val) throws IOException {
+      int before = depth;
+      start(path.child(planned.name), currentMatch, planned.property, val);
+      return depth > before;
+    }
+
+    boolean canWritePrimitive(PlannedProperty planned) {
+      return planned.primitiveKind != Kind.OBJECT && inclusion(planned).includesAllPrimitives()
+          && registered.find(planned.primitiveKind.boxedType) == null;
+    }
+
+    /**
+     * Returns the plan for writing an instance of the given class in the current context
+     * (path, match and referring field). Plans are compiled once and cached on the view.
+     */
+    ViewPlan getViewPlan(Class cls) {
+      return view.plan(planKey.set(cls, path, currentMatch, referringField), this);
+    }
+
+    /**
+     * Runs the include/exclude, naming, transform and serializer lookups for every property
+     * of the class. Like writing an object used to, this adopts the first match found as the
+     * current match; the plan records the result so cached plans can restore it.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ViewPlan compileViewPlan(Class cls) {
+      List<PlannedProperty> properties = new ArrayList<>();
+      InclusionPolicy viewInclusion = viewInclusion(cls);
+      for(AccessibleProperty property : getAccessibleProperties(cls)) {
+        if(fieldAllowed(property, cls)) {
+          InclusionPolicy inclusion = annotatedInclusion(property, cls);
+          properties.add(new PlannedProperty(property, getFieldName(property), getTransform(property, cls),
+              annotatedWithJsonSerialize(property), inclusion == null ? viewInclusion : inclusion));
+        }
+      }
+      return new ViewPlan(currentMatch, properties);
+    }
+
+    /**
+     * The inclusion policy of the match that applies to the class, or else the view's.
+     * Returns null if neither sets one.
+     */
+    InclusionPolicy viewInclusion(Class cls) {
+      Match match = getMatchPrefix(cls).match;
+      InclusionPolicy inclusion = match == null ? null : InclusionPolicy.of(match.getInclusion());
+      return inclusion == null ? view.inclusion : inclusion;
+    }
+
+    boolean valueAllowed(PlannedProperty planned, Object value) {
+      return inclusion(planned).includes(value);
+    }
+
+    private InclusionPolicy inclusion(PlannedProperty planned) {
+      return planned.inclusion == null ? defaultInclusion : planned.inclusion;
+    }
+
+    /**
+     * Resolves the annotations deciding which values of a property are written, nearest
+     * first: the property's {@code @JsonInclude}, then the class's {@code @JsonSerialize}
+     * and {@code @JsonInclude}. Returns null if none of them apply, leaving it to the view
+     * or the mapper's default.
+     */
+    InclusionPolicy annotatedInclusion(AccessibleProperty property, Class cls) {
+      JsonInclude jsonInclude = getAnnotation(property, JsonInclude.class);
+      InclusionPolicy policy = jsonInclude == null ? null : InclusionPolicy.of(jsonInclude.value());
+      if(policy == null) {
+        JsonSerialize jsonSerialize = getAnnotation(cls, JsonSerialize.class);
+        policy = jsonSerialize == null ? null : InclusionPolicy.of(jsonSerialize.include());
+      }
+      if(policy == null) {
+        JsonInclude classInclude = getAnnotation(cls, JsonInclude.class);
+        policy = classInclude == null ? null : InclusionPolicy.of(classInclude.value());
+      }
+      return policy;
     }
 
     /**
      * Do a search for *all* matchers for a class. This takes into account all relevant
      * parents in the class hierarchy. If multiple matches are found, the matches will
-     * be unioned together.
+     * be unioned together. Only one inclusion policy can apply, so the union takes the one
+     * found first: the class's own, then its superclasses', then its interfaces'.
+     * <p>
+     * This method is memoized per compiled view, so the union is only built once and
+     * keeps its identity (which plans are keyed on) from one object to the next.
      */
     @SuppressWarnings("unchecked")
     private Optional<Match> classMatchSearch(Class declaringClass) {
-//      return memoizer.classMatches(result, declaringClass, () -> {
-      List<Match> matches = new ArrayList<>();
-      Stack<Class> classes = new Stack<>();
-      classes.push(declaringClass);
-      while(!classes.isEmpty()) {
-        Class cls = classes.pop();
-        Match match = result.getMatch(cls);
-
-        if(match != null) {
-          matches.add(match);
-        }
-        if(cls.getInterfaces() != null) {
-          Stream.of(cls.getInterfaces()).forEach(c -> classes.push(c));
-        }
-        if(cls.getSuperclass() != null && !cls.getSuperclass().equals(Object.class)) {
-          classes.push(cls.getSuperclass());
-        }
-      }
-
-      if(matches.size() == 1) {
-        return Optional.of(matches.get(0));
-      } else if(matches.size() > 1) {
-        // Join all the includes and excludes
-        Match unionMatch = new Match();
-        matches.forEach(m -> {
-          unionMatch.getExcludes().addAll(m.getExcludes());
-          unionMatch.getIncludes().addAll(m.getIncludes());
-          unionMatch.getTransforms().putAll(m.getTransforms());
-        });
-        return Optional.of(unionMatch);
-      } else {
-        return Optional.empty();
-      }
-//      });
+      return memoizer.classMatches(view, declaringClass, () -> {
+        List<Match> matches = new ArrayList<>();
+        Stack<Class> classes = new Stack<>();
+        classes.push(declaringClass);
+        while(!classes.isEmpty()) {
+          Class cls = classes.pop();
+          Match match = view.getMatch(cls);
+
+          // Interfaces can be reached through more than one parent
+          if(match != null && !matches.contains(match)) {
+            matches.add(match);
+          }
+          for(Class iface : cls.getInterfaces()) {
+            classes.push(iface);
+          }
+          if(cls.getSuperclass() != null && !cls.getSuperclass().equals(Object.class)) {
+            classes.push(cls.getSuperclass());
+          }
+        }
+
+        if(matches.size() == 1) {
+          return Optional.of(matches.get(0));
+        } else if(matches.size() > 1) {
+          // Join all the includes and excludes, the most specific inclusion wins
+          Match unionMatch = new Match();
+          matches.forEach(m -> {
+            unionMatch.exclude(m.getExcludes().toArray(new String[0]));
+            unionMatch.include(m.getIncludes().toArray(new String[0]));
+            unionMatch.getTransforms().putAll(m.getTransforms());
+            if(unionMatch.getInclusion() == null && m.getInclusion() != null) {
+              unionMatch.withInclusion(m.getInclusion());
+            }
+          });
+          return Optional.of(unionMatch);
+        } else {
+          return Optional.empty();
+        }
+      });
     }
 
     @SuppressWarnings("unchecked")
@@ -422,7 +1212,6 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
       }
 
       MatchPrefixTuple tuple = getMatchPrefix(declaringClass);
-      String prefix = tuple.prefix;
       Match match = tuple.match;
 
       //if there is a match, respect it
@@ -432,8 +1221,8 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
           currentMatch = match;
         }
 
-        int included = containsMatchingPattern(match.getIncludes(), prefix + name, true);
-        int excluded = containsMatchingPattern(match.getExcludes(), prefix + name, false);
+        int included = containsMatchingPattern(match.getIncludeMatcher(), tuple.path, name, true);
+        int excluded = containsMatchingPattern(match.getExcludeMatcher(), tuple.path, name, false);
 
         /*
         The logic for this is a little complex. We're dealing with ternary logic to
@@ -458,13 +1247,10 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
     }
 
     MatchPrefixTuple getMatchPrefix(Class declaringClass) {
-      String prefix = currentPath.length() > 0 ? currentPath + "." : "";
+      PathNode path = this.path;
 
       // Determine matcher behavior
-      MatcherBehavior currentBehavior = result.matcherBehavior;
-      if(currentBehavior == null) {
-        currentBehavior = JsonViewSerializer.this.defaultMatcherBehavior;
-      }
+      MatcherBehavior currentBehavior = view.matcherBehavior;
 
       //search for matching class
       Match match = null;
@@ -473,55 +1259,29 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
         if(match == null) {
           match = currentMatch;
         } else {
-          prefix = "";
+          path = view.root;
         }
       } else if(currentBehavior == PATH_FIRST) {
         if(currentMatch != null) {
           match = currentMatch;
         } else {
           match = classMatchSearch(declaringClass).orElse(null);
-          prefix = "";
+          path = view.root;
         }
       }
 
-      return new MatchPrefixTuple(match, prefix);
+      return new MatchPrefixTuple(match, path);
     }
 
-    Object readField(Object obj, AccessibleProperty field) throws IllegalAccessException {
-      MatchPrefixTuple tuple = getMatchPrefix(obj.getClass());
-      if(tuple.match != null && tuple.match.getTransforms().containsKey(tuple.prefix + field.name)) {
-        return tuple.match.getTransforms().get(tuple.prefix + field.name).apply(obj, field.get(obj));
+    BiFunction<Object, Object, Object> getTransform(AccessibleProperty field, Class declaringClass) {
+      MatchPrefixTuple tuple = getMatchPrefix(declaringClass);
+      if(tuple.match != null) {
+        return tuple.match.getTransforms().get(tuple.path.isRoot() ? field.name : tuple.path.path() + "." + field.name);
       } else {
-        return field.get(obj);
-      }
-    }
-
-    void write(String fieldName, Object value) throws IOException {
-      if(fieldName != null) {
-        path.push(fieldName);
-        updateCurrentPath();
-      }
-
-      //try to handle all primitives/special cases before treating this as json object
-      if(!writePrimitive(value) && !writeSpecial(value) && !writeEnum(value) && !writeList(value) && !writeMap(value)) {
-        writeObject(value);
-      }
-
-      if(fieldName != null) {
-        path.pop();
-        updateCurrentPath();
+        return null;
       }
     }
 
-    void updateCurrentPath() {
-      StringBuilder builder = new StringBuilder();
-      for(String s : path) {
-        builder.append(".");
-        builder.append(s);
-      }
-      currentPath = builder.length() > 0 ? builder.toString().substring(1) : "";
-    }
-
     @SuppressWarnings("unchecked")
     <E> E readClassAnnotation(Class cls, Class annotationType, String methodName) {
       try {
@@ -550,20 +1310,12 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
      *  1: Non-wildcard match
      * </pre>
      * <p>
-     * This method is memoized to speed up execution time
-     */
-    int containsMatchingPattern(Set<String> values, String pattern, boolean matchPrefix) {
-      return memoizer.matches(values, pattern, matchPrefix, () -> {
-        int match = -1;
-        for(String val : values) {
-          String replaced = val.replaceAll("\\.", "\\\\.").replaceAll("\\*", ".*");
-          if(Pattern.compile(replaced).matcher(pattern).matches() || (matchPrefix && val.startsWith(pattern + "."))) {
-            match = replaced.contains("*") ? 0 : 1;
-            break;
-          }
-        }
-        return match;
-      });
+     * Matches the field {@code name} under the given path through the match's cached
+     * matcher, without building the full dotted path.
+     */
+    int containsMatchingPattern(PathMatcher matcher, PathNode path, String name, boolean matchPrefix) {
+      PathMatcher.State state = matcher.state(path).next(name);
+      return matchPrefix ? state.prefixMatch : state.match;
     }
 
     /**
@@ -571,7 +1323,7 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
      * some form of ignore. This method is memoized to speed up execution time
      */
     boolean annotatedWithIgnore(AccessibleProperty f) {
-      return memoizer.annotatedWithIgnore(f, () -> {
+      return memoizer.annotatedWithIgnore(f, referringField, () -> {
         JsonIgnore jsonIgnore = getAnnotation(f, JsonIgnore.class);
         JsonIgnoreProperties classIgnoreProperties = getAnnotation(f.declaringClass, JsonIgnoreProperties.class);
         JsonIgnoreProperties fieldIgnoreProperties = null;
@@ -600,18 +1352,42 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
       });
     }
 
-    JsonSerializer annotatedWithJsonSerialize(AccessibleProperty property) {
+    /**
+     * Returns the serializer a property is annotated with, if any. Like Jackson does for
+     * its own properties, the serializer is created, resolved and contextualized once, and
+     * reused for as long as the property and serialization config are.
+     */
+    @SuppressWarnings("unchecked")
+    JsonSerializer<Object> annotatedWithJsonSerialize(AccessibleProperty property) {
       JsonSerialize jsonSerialize = getAnnotation(property, JsonSerialize.class);
-      if(jsonSerialize != null) {
-        if(!jsonSerialize.using().equals(JsonSerializer.None.class)) {
-          try {
-            return jsonSerialize.using().newInstance();
-          } catch(InstantiationException | IllegalAccessException e) {
-            throw new RuntimeException(e);
+      if(jsonSerialize == null || jsonSerialize.using().equals(JsonSerializer.None.class)) {
+        return null;
+      }
+
+      return memoizer.serializer(property, serializerProvider.getConfig(), () -> {
+        try {
+          JsonSerializer<Object> serializer = (JsonSerializer<Object>) ClassUtil.createInstance(jsonSerialize.using(), true);
+          if(serializer instanceof ResolvableSerializer) {
+            ((ResolvableSerializer) serializer).resolve(serializerProvider);
+          }
+          if(serializer instanceof ContextualSerializer) {
+            serializer = (JsonSerializer<Object>) ((ContextualSerializer) serializer).createContextual(serializerProvider, beanProperty(property));
           }
+          return serializer;
+        } catch(JsonMappingException e) {
+          throw new RuntimeException(e);
         }
-      }
-      return null;
+      });
+    }
+
+    /**
+     * Describes a property to contextual serializers. There's no annotated member to go
+     * with it, as properties aren't introspected by Jackson here.
+     */
+    private BeanProperty beanProperty(AccessibleProperty property) {
+      Type type = property.property instanceof Field ? ((Field) property.property).getGenericType() : ((Method) property.property).getGenericReturnType();
+      return new BeanProperty.Std(PropertyName.construct(getFieldName(property)), serializerProvider.constructType(type),
+          null, null, PropertyMetadata.STD_OPTIONAL);
     }
 
     private Class<?>[] getInterfaces(Class cls) {
@@ -802,11 +1578,11 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
 
   private static class MatchPrefixTuple {
     private final Match match;
-    private final String prefix;
+    private final PathNode path;
 
-    public MatchPrefixTuple(Match match, String prefix) {
+    public MatchPrefixTuple(Match match, PathNode path) {
       this.match = match;
-      this.prefix = prefix;
+      this.path = path;
     }
   }
 
@@ -817,7 +1593,8 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
     public final Annotation[] annotations;
     public final int modifiers;
     public final Object property;
-    private final Function<Object, Object> getter;
+    private final int hashCode;
+    private volatile PropertyAccessor accessor;
 
     public AccessibleProperty(String name, Annotation[] annotations, Object property) {
       this.name = name;
@@ -828,37 +1605,31 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
         this.declaringClass = ((Field) property).getDeclaringClass();
         this.type = ((Field) property).getType();
         this.modifiers = ((Field) property).getModifiers();
-        this.getter = this::getFromField;
       } else if(property instanceof Method) {
         this.declaringClass = ((Method) property).getDeclaringClass();
         this.type = ((Method) property).getReturnType();
         this.modifiers = ((Method) property).getModifiers();
-        this.getter = this::getFromMethod;
       } else {
         throw new RuntimeException("Unable to access property from " + property);
       }
+      this.hashCode = Objects.hash(declaringClass, name);
     }
 
     public Object get(Object obj) {
-      return getter.apply(obj);
-    }
-
-    private Object getFromField(Object obj) {
-      try {
-        ((Field) property).setAccessible(true);
-        return ((Field) property).get(obj);
-      } catch(IllegalAccessException e) {
-        throw new RuntimeException(e);
-      }
+      return accessor().get(obj);
     }
 
-    private Object getFromMethod(Object obj) {
-      try {
-        ((Method) property).setAccessible(true);
-        return ((Method) property).invoke(obj);
-      } catch(IllegalAccessException | InvocationTargetException e) {
-        throw new RuntimeException(e);
+    /**
+     * Returns the accessor for this property, built the first time it's read. Most
+     * properties found on a class are never read, so they never pay for one.
+     */
+    PropertyAccessor accessor() {
+      PropertyAccessor a = accessor;
+      if(a == null) {
+        a = PropertyAccessor.of(property);
+        accessor = a;
       }
+      return a;
     }
 
     @Override
@@ -872,8 +1643,7 @@ public class JsonViewSerializer extends JsonSerializer<JsonView> {
 
     @Override
     public int hashCode() {
-
-      return Objects.hash(declaringClass, name);
+      return hashCode;
     }
   }
 }
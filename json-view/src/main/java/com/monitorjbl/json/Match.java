@@ -1,5 +1,7 @@
 package com.monitorjbl.json;
 
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -11,6 +13,13 @@ public class Match {
   private final Set<String> includes = new HashSet<>();
   private final Set<String> excludes = new HashSet<>();
   private final Map<String, BiFunction<Object, Object, Object>> transforms = new HashMap<>();
+  private Include inclusion;
+  private volatile PathMatcher includeMatcher;
+  private volatile PathMatcher excludeMatcher;
+  /**
+   * Bumped by every change, so a view compiled from this match can tell it's out of date
+   */
+  private volatile int modCount;
 
   Match() {
 
@@ -25,6 +34,8 @@ public class Match {
   public Match include(String... fields) {
     if(fields != null) {
       includes.addAll(Arrays.asList(fields));
+      includeMatcher = null;
+      modCount++;
     }
     return this;
   }
@@ -38,6 +49,8 @@ public class Match {
   public Match exclude(String... fields) {
     if(fields != null) {
       excludes.addAll(Arrays.asList(fields));
+      excludeMatcher = null;
+      modCount++;
     }
     return this;
   }
@@ -55,9 +68,28 @@ public class Match {
   @SuppressWarnings("unchecked")
   public <X, Y, Z> Match transform(String field, BiFunction<X, Y, Z> transformer) {
     transforms.put(field, (BiFunction<Object, Object, Object>) transformer);
+    modCount++;
     return this;
   }
 
+  /**
+   * Sets which values of the matched class's properties are written, in place of the
+   * mapper's (or the view's) default. Policies set with {@code @JsonInclude} on a property
+   * or its class still take precedence.
+   *
+   * @param inclusion The inclusion policy
+   * @return This match
+   */
+  public Match withInclusion(Include inclusion) {
+    this.inclusion = inclusion;
+    modCount++;
+    return this;
+  }
+
+  int modCount() {
+    return modCount;
+  }
+
   Set<String> getIncludes() {
     return includes;
   }
@@ -70,6 +102,49 @@ public class Match {
     return transforms;
   }
 
+  /**
+   * Returns the inclusion policy set with {@link #withInclusion}, or null if there isn't one.
+   */
+  Include getInclusion() {
+    return inclusion;
+  }
+
+  /**
+   * Returns the include patterns compiled into a single matcher. The matcher is built on
+   * first use and rebuilt after any new includes are added.
+   */
+  PathMatcher getIncludeMatcher() {
+    PathMatcher matcher = includeMatcher;
+    if(matcher == null) {
+      includeMatcher = matcher = PathMatcher.compile(includes);
+    }
+    return matcher;
+  }
+
+  /**
+   * Returns the exclude patterns compiled into a single matcher. The matcher is built on
+   * first use and rebuilt after any new excludes are added.
+   */
+  PathMatcher getExcludeMatcher() {
+    PathMatcher matcher = excludeMatcher;
+    if(matcher == null) {
+      excludeMatcher = matcher = PathMatcher.compile(excludes);
+    }
+    return matcher;
+  }
+
+  /**
+   * Returns a copy of this match that is unaffected by any later changes made to it.
+   */
+  Match copy() {
+    Match copy = new Match();
+    copy.includes.addAll(includes);
+    copy.excludes.addAll(excludes);
+    copy.transforms.putAll(transforms);
+    copy.inclusion = inclusion;
+    return copy;
+  }
+
   public static Match match() {
     return new Match();
   }
@@ -80,6 +155,7 @@ public class Match {
         "includes=" + includes +
         ", excludes=" + excludes +
         ", transforms=" + transforms +
+        ", inclusion=" + inclusion +
         '}';
   }
 
@@ -92,7 +168,8 @@ public class Match {
 
     if(includes != null ? !includes.equals(match.includes) : match.includes != null) return false;
     if(excludes != null ? !excludes.equals(match.excludes) : match.excludes != null) return false;
-    return transforms != null ? transforms.equals(match.transforms) : match.transforms == null;
+    if(transforms != null ? !transforms.equals(match.transforms) : match.transforms != null) return false;
+    return inclusion == match.inclusion;
   }
 
   @Override
@@ -100,6 +177,7 @@ public class Match {
     int result = includes != null ? includes.hashCode() : 0;
     result = 31 * result + (excludes != null ? excludes.hashCode() : 0);
     result = 31 * result + (transforms != null ? transforms.hashCode() : 0);
+    result = 31 * result + (inclusion != null ? inclusion.hashCode() : 0);
     return result;
   }
 }
@@ -5,163 +5,410 @@ import com.monitorjbl.json.JsonViewSerializer.AccessibleProperty;
 import java.util.EnumMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
 import static com.monitorjbl.json.Memoizer.FunctionCache.ACCESSIBLE_PROPERTY;
 import static com.monitorjbl.json.Memoizer.FunctionCache.ANNOTATIONS;
 import static com.monitorjbl.json.Memoizer.FunctionCache.CLASS_MATCHES;
+import static com.monitorjbl.json.Memoizer.FunctionCache.FILTERING_MAPPERS;
 import static com.monitorjbl.json.Memoizer.FunctionCache.IGNORE_ANNOTATIONS;
-import static com.monitorjbl.json.Memoizer.FunctionCache.MATCHES;
+import static com.monitorjbl.json.Memoizer.FunctionCache.KEY_SERIALIZERS;
+import static com.monitorjbl.json.Memoizer.FunctionCache.LEAF_SERIALIZERS;
+import static com.monitorjbl.json.Memoizer.FunctionCache.SERIALIZERS;
+import static com.monitorjbl.json.Memoizer.FunctionCache.VIEWS;
+import static com.monitorjbl.json.Memoizer.FunctionCache.VIEW_FILTERS;
 
+/**
+ * Caches the results of expensive (pure) functions.
+ * <p>
+ * Each {@link FunctionCache} is bounded separately and evicts in the style of W-TinyLFU:
+ * new entries land in a small LRU window, and an entry leaving the window only displaces
+ * an entry of the main space if it has been used more often, as estimated by a
+ * count-min sketch. Entries that are used often survive bursts of one-off keys, which
+ * plain LRU (or random) eviction would flush.
+ * <p>
+ * Values are computed at most once per key, even when several threads miss at the same
+ * time. A computation may use other caches but must not re-enter its own.
+ */
 @SuppressWarnings("unchecked")
 class Memoizer {
-  private final int maxCacheSize;
-  private final Map<FunctionCache, Map<Arg, Object>> cache = new EnumMap<>(FunctionCache.class);
+  private final Map<FunctionCache, Cache> cache = new EnumMap<>(FunctionCache.class);
 
   public Memoizer(int maxCacheSize) {
-    this.maxCacheSize = maxCacheSize;
     for(FunctionCache key : FunctionCache.class.getEnumConstants()) {
-      cache.put(key, new ConcurrentHashMap<>());
+      cache.put(key, new Cache(maxCacheSize));
     }
   }
 
-  public <T> T matches(Set<String> values, String pattern, boolean matchPrefix, Supplier<T> compute) {
-    return computeIfAbsent(MATCHES, new TriArg(values, pattern, matchPrefix), compute);
-  }
-
-  public <T> T classMatches(JsonView jsonView, Class cls, Supplier<T> compute) {
-    return computeIfAbsent(CLASS_MATCHES, new BiArg(jsonView, cls), compute);
+  public <T> T classMatches(CompiledView view, Class cls, Supplier<T> compute) {
+    return computeIfAbsent(CLASS_MATCHES, new BiArg(view, cls), compute);
   }
 
   public <T> T annotations(Class cls, Supplier<T> compute) {
     return computeIfAbsent(ANNOTATIONS, new MonoArg(cls), compute);
   }
 
-  public <T> T annotatedWithIgnore(AccessibleProperty property, Supplier<T> compute) {
-    return computeIfAbsent(IGNORE_ANNOTATIONS, new MonoArg(property), compute);
+  public <T> T annotatedWithIgnore(AccessibleProperty property, AccessibleProperty referringField, Supplier<T> compute) {
+    return computeIfAbsent(IGNORE_ANNOTATIONS, new BiArg(property, referringField), compute);
   }
 
   public <T> T accessibleProperty(Class cls, Supplier<T> compute) {
     return computeIfAbsent(ACCESSIBLE_PROPERTY, new MonoArg(cls), compute);
   }
 
+  public <T> T compiledView(CompiledView view, Supplier<T> compute) {
+    return computeIfAbsent(VIEWS, new MonoArg(view), compute);
+  }
+
+  public <T> T serializer(AccessibleProperty property, Object config, Supplier<T> compute) {
+    return computeIfAbsent(SERIALIZERS, new BiArg(property, config), compute);
+  }
+
+  public <T> T leafSerializer(Class cls, Object config, Supplier<T> compute) {
+    return computeIfAbsent(LEAF_SERIALIZERS, new BiArg(cls, config), compute);
+  }
+
+  public <T> T keySerializer(Class cls, Object config, Supplier<T> compute) {
+    return computeIfAbsent(KEY_SERIALIZERS, new BiArg(cls, config), compute);
+  }
+
+  public <T> T filteringMapper(Object mapper, Supplier<T> compute) {
+    return computeIfAbsent(FILTERING_MAPPERS, new MonoArg(mapper), compute);
+  }
+
+  public <T> T viewFilters(CompiledView view, Supplier<T> compute) {
+    return computeIfAbsent(VIEW_FILTERS, new MonoArg(view), compute);
+  }
+
   public <T> T computeIfAbsent(FunctionCache cacheName, Arg arg, Supplier<T> compute) {
-    Map<Arg, Object> map = fitToMaxSize(cacheName);
-    if(!map.containsKey(arg)) {
-      map.put(arg, compute.get());
+    return (T) cache.get(cacheName).get(arg, (Supplier<Object>) compute);
+  }
+
+  /**
+   * Changes the maximum size of one cache. Shrinking takes effect on the next insertion.
+   */
+  public void setMaxSize(FunctionCache cacheName, int maxSize) {
+    cache.get(cacheName).setMaxSize(maxSize);
+  }
+
+  public CacheStats stats(FunctionCache cacheName) {
+    return cache.get(cacheName).stats();
+  }
+
+  enum FunctionCache {
+    IGNORE_ANNOTATIONS, ANNOTATIONS, ACCESSIBLE_PROPERTY, CLASS_MATCHES, VIEWS, SERIALIZERS, LEAF_SERIALIZERS, KEY_SERIALIZERS, FILTERING_MAPPERS, VIEW_FILTERS
+  }
+
+  /**
+   * A single bounded cache. Lookups never block; the eviction policy is updated under a
+   * lock that reads only try for, so under contention some reads simply go unrecorded.
+   */
+  private static class Cache {
+    private final Map<Arg, Node> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final Queue window = new Queue();
+    private final Queue probation = new Queue();
+    private final Queue protectedQueue = new Queue();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile FrequencySketch sketch;
+    private volatile int maxSize;
+
+    Cache(int maxSize) {
+      setMaxSize(maxSize);
+    }
+
+    void setMaxSize(int maxSize) {
+      if(maxSize < 1) {
+        throw new IllegalArgumentException("Cache size must be at least 1");
+      }
+      policyLock.lock();
+      try {
+        this.maxSize = maxSize;
+        this.sketch = new FrequencySketch(maxSize);
+      } finally {
+        policyLock.unlock();
+      }
+    }
+
+    Object get(Arg arg, Supplier<Object> compute) {
+      Node node = data.get(arg);
+      if(node != null) {
+        hits.increment();
+        if(policyLock.tryLock()) {
+          try {
+            onAccess(node);
+          } finally {
+            policyLock.unlock();
+          }
+        }
+        return node.value;
+      }
+
+      Node[] created = new Node[1];
+      node = data.computeIfAbsent(arg, k -> created[0] = new Node(k, compute.get()));
+      if(created[0] == null) {
+        // Someone else computed it first
+        hits.increment();
+        return node.value;
+      }
+
+      misses.increment();
+      policyLock.lock();
+      try {
+        onInsert(node);
+      } finally {
+        policyLock.unlock();
+      }
+      return node.value;
+    }
+
+    CacheStats stats() {
+      return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), data.size(), maxSize);
+    }
+
+    private void onAccess(Node node) {
+      sketch.increment(node.hash);
+      if(node.queue == window) {
+        window.moveToTail(node);
+      } else if(node.queue == probation) {
+        // Used again while on probation, so it earns a place in the protected space
+        probation.remove(node);
+        protectedQueue.add(node);
+        int maxProtected = (maxSize - windowSize()) * 4 / 5;
+        while(protectedQueue.size > maxProtected && protectedQueue.size > 0) {
+          Node demoted = protectedQueue.head;
+          protectedQueue.remove(demoted);
+          probation.add(demoted);
+        }
+      } else if(node.queue == protectedQueue) {
+        protectedQueue.moveToTail(node);
+      }
+    }
+
+    private void onInsert(Node node) {
+      sketch.increment(node.hash);
+      window.add(node);
+
+      // Entries leaving the window compete with the main space's least recent entry
+      while(window.size > windowSize()) {
+        Node candidate = window.head;
+        window.remove(candidate);
+        probation.add(candidate);
+      }
+
+      while(window.size + probation.size + protectedQueue.size > maxSize) {
+        Node victim = probation.head;
+        Node candidate = probation.tail;
+        if(victim == null) {
+          victim = protectedQueue.head != null ? protectedQueue.head : window.head;
+          evict(victim);
+        } else if(victim == candidate || sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+          evict(victim);
+        } else {
+          evict(candidate);
+        }
+      }
+    }
+
+    private int windowSize() {
+      return Math.max(1, maxSize / 100);
+    }
+
+    private void evict(Node node) {
+      node.queue.remove(node);
+      data.remove(node.key, node);
+      evictions.increment();
     }
-    return (T) map.get(arg);
   }
 
-  private Map<Arg, Object> fitToMaxSize(FunctionCache key) {
-    Map<Arg, Object> map = cache.get(key);
-    if(map.size() > maxCacheSize) {
-      map.remove(map.keySet().iterator().next());
+  private static class Node {
+    private final Arg key;
+    private final Object value;
+    private final int hash;
+    private Queue queue;
+    private Node prev;
+    private Node next;
+
+    Node(Arg key, Object value) {
+      this.key = key;
+      this.value = value;
+      this.hash = key.hashCode();
     }
-    return map;
   }
 
-  enum FunctionCache {
-    IGNORE_ANNOTATIONS, MATCHES, ANNOTATIONS, ACCESSIBLE_PROPERTY, CLASS_MATCHES
+  /**
+   * Intrusive doubly-linked list, least recently used first
+   */
+  private static class Queue {
+    private Node head;
+    private Node tail;
+    private int size;
+
+    void add(Node node) {
+      node.queue = this;
+      node.prev = tail;
+      node.next = null;
+      if(tail == null) {
+        head = node;
+      } else {
+        tail.next = node;
+      }
+      tail = node;
+      size++;
+    }
+
+    void remove(Node node) {
+      if(node.prev == null) {
+        head = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+      if(node.next == null) {
+        tail = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = node.next = null;
+      node.queue = null;
+      size--;
+    }
+
+    void moveToTail(Node node) {
+      if(node != tail) {
+        remove(node);
+        add(node);
+      }
+    }
   }
 
-  private interface Arg {}
+  /**
+   * Count-min sketch of how often keys are used, four 4-bit counters per key. Counters
+   * are halved periodically so that the estimate favors recent popularity.
+   */
+  private static class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
 
-  private class MonoArg implements Arg {
-    private final Object arg1;
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
 
-    public MonoArg(Object arg1) {
-      this.arg1 = arg1;
+    FrequencySketch(int maxSize) {
+      int length = Integer.highestOneBit(Math.max(16, Math.min(maxSize, 1 << 24)) - 1) << 1;
+      this.table = new long[length];
+      this.mask = length - 1;
+      this.sampleSize = 10 * length;
     }
 
-    @Override
-    public boolean equals(Object o) {
-      MonoArg monoArg = (MonoArg) o;
+    int frequency(int hash) {
+      int start = (spread(hash) & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for(int i = 0; i < 4; i++) {
+        int offset = (start + i) << 2;
+        int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
 
-      return arg1 != null ? arg1.equals(monoArg.arg1) : monoArg.arg1 == null;
+    void increment(int hash) {
+      int start = (spread(hash) & 3) << 2;
+      boolean added = false;
+      for(int i = 0; i < 4; i++) {
+        int index = indexOf(hash, i);
+        int offset = (start + i) << 2;
+        if(((table[index] >>> offset) & 0xfL) != 0xfL) {
+          table[index] += 1L << offset;
+          added = true;
+        }
+      }
+
+      if(added && ++additions == sampleSize) {
+        for(int i = 0; i < table.length; i++) {
+          table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+      }
     }
 
-    @Override
-    public int hashCode() {
-      return arg1 != null ? arg1.hashCode() : 0;
+    private int indexOf(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int) h & mask;
     }
 
-    @Override
-    public String toString() {
-      return "MonoArg{" +
-          "arg1=" + arg1 +
-          '}';
+    private static int spread(int hash) {
+      int h = hash * 0x9e3779b9;
+      return h ^ (h >>> 16);
     }
   }
 
-  private class BiArg implements Arg {
+  interface Arg {}
+
+  static class MonoArg implements Arg {
     private final Object arg1;
-    private final Object arg2;
 
-    public BiArg(Object arg1, Object arg2) {
+    public MonoArg(Object arg1) {
       this.arg1 = arg1;
-      this.arg2 = arg2;
     }
 
     @Override
     public boolean equals(Object o) {
       if(this == o) return true;
       if(o == null || getClass() != o.getClass()) return false;
-      BiArg biArg = (BiArg) o;
-      return Objects.equals(arg1, biArg.arg1) &&
-          Objects.equals(arg2, biArg.arg2);
+      MonoArg monoArg = (MonoArg) o;
+
+      return arg1 != null ? arg1.equals(monoArg.arg1) : monoArg.arg1 == null;
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(arg1, arg2);
+      return arg1 != null ? arg1.hashCode() : 0;
     }
 
     @Override
     public String toString() {
-      return "BiArg{" +
+      return "MonoArg{" +
           "arg1=" + arg1 +
-          ", arg2=" + arg2 +
           '}';
     }
   }
 
-  private class TriArg implements Arg {
+  static class BiArg implements Arg {
     private final Object arg1;
     private final Object arg2;
-    private final Object arg3;
 
-    public TriArg(Object arg1, Object arg2, Object arg3) {
+    public BiArg(Object arg1, Object arg2) {
       this.arg1 = arg1;
       this.arg2 = arg2;
-      this.arg3 = arg3;
     }
 
     @Override
     public boolean equals(Object o) {
-      TriArg triArg = (TriArg) o;
-
-      if(arg1 != null ? !arg1.equals(triArg.arg1) : triArg.arg1 != null) return false;
-      if(arg2 != null ? !arg2.equals(triArg.arg2) : triArg.arg2 != null) return false;
-      return arg3 != null ? arg3.equals(triArg.arg3) : triArg.arg3 == null;
+      if(this == o) return true;
+      if(o == null || getClass() != o.getClass()) return false;
+      BiArg biArg = (BiArg) o;
+      return Objects.equals(arg1, biArg.arg1) &&
+          Objects.equals(arg2, biArg.arg2);
     }
 
     @Override
     public int hashCode() {
       int result = arg1 != null ? arg1.hashCode() : 0;
-      result = 31 * result + (arg2 != null ? arg2.hashCode() : 0);
-      result = 31 * result + (arg3 != null ? arg3.hashCode() : 0);
-      return result;
+      return 31 * result + (arg2 != null ? arg2.hashCode() : 0);
     }
 
     @Override
     public String toString() {
-      return "TriArg{" +
+      return "BiArg{" +
           "arg1=" + arg1 +
           ", arg2=" + arg2 +
-          ", arg3=" + arg3 +
           '}';
     }
   }
@@ -0,0 +1,322 @@
+package com.monitorjbl.json;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches dotted field paths against a set of include or exclude patterns in a single pass.
+ * <p>
+ * All patterns are compiled into one automaton whose states are built lazily, the first
+ * time a path reaches them. Every state remembers where each path segment took it, so
+ * walking a path that has been seen before costs one map lookup per segment no matter how
+ * many patterns there are. A {@code *} matches any run of characters, dots included.
+ * <p>
+ * Results use the same ternary logic as the rest of the matching code:
+ * <pre>
+ * -1: No match found
+ *  0: Wildcard-based match
+ *  1: Non-wildcard match
+ * </pre>
+ * When several patterns match, the most specific result wins.
+ */
+class PathMatcher {
+  /**
+   * Upper bound on the states and per-state transitions kept. Past these limits paths are
+   * still matched correctly, they just aren't cached.
+   */
+  static final int MAX_STATES = 4096;
+  static final int MAX_TRANSITIONS = 1024;
+
+  private final char[][] patterns;
+  private final int[] weights;
+  private final Map<StateKey, State> states = new ConcurrentHashMap<>();
+  private final Map<PathNode, State> nodeStates = new ConcurrentHashMap<>();
+  private final State root;
+
+  private PathMatcher(Collection<String> patterns) {
+    int count = patterns.size();
+    this.patterns = new char[count][];
+    this.weights = new int[count];
+
+    int i = 0;
+    for(String pattern : patterns) {
+      this.patterns[i] = pattern.toCharArray();
+      this.weights[i] = pattern.indexOf('*') >= 0 ? 0 : 1;
+      i++;
+    }
+
+    long[] start = new long[count];
+    for(int k = 0; k < count; k++) {
+      start[k] = position(k, 0);
+    }
+    this.root = intern(closure(start, count), start, true);
+  }
+
+  static PathMatcher compile(Collection<String> patterns) {
+    return new PathMatcher(patterns);
+  }
+
+  /**
+   * The state for the empty path
+   */
+  State root() {
+    return root;
+  }
+
+  /**
+   * Returns the state reached by walking the path of the given node. Only the segments
+   * below the nearest node that has already been walked are stepped through. States of
+   * nodes that aren't interned are remembered on the nodes instead.
+   */
+  State state(PathNode node) {
+    int count = 0;
+    State state = root;
+    for(PathNode n = node; !n.isRoot(); n = n.parent) {
+      State known = n.isInterned() ? nodeStates.get(n) : n.state(this);
+      if(known != null) {
+        state = known;
+        break;
+      }
+      count++;
+    }
+    if(count == 0) {
+      return state;
+    }
+
+    // Only a miss needs the unwalked nodes, deepest last
+    PathNode[] unwalked = new PathNode[count];
+    PathNode n = node;
+    for(int i = count - 1; i >= 0; i--, n = n.parent) {
+      unwalked[i] = n;
+    }
+
+    for(int i = 0; i < count; i++) {
+      state = state.next(unwalked[i].segment);
+      if(!unwalked[i].isInterned()) {
+        unwalked[i].remember(state);
+      } else if(nodeStates.size() < MAX_STATES) {
+        nodeStates.put(unwalked[i], state);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Convenience for one-off checks of a complete dotted path.
+   */
+  int matches(String path, boolean matchPrefix) {
+    State state = root.next(path);
+    return matchPrefix ? state.prefixMatch : state.match;
+  }
+
+  private State intern(long[] glob, long[] literal, boolean isRoot) {
+    StateKey key = new StateKey(glob, literal, isRoot);
+    State state = states.get(key);
+    if(state == null) {
+      state = new State(glob, literal, isRoot);
+      if(states.size() < MAX_STATES) {
+        State existing = states.putIfAbsent(key, state);
+        if(existing != null) {
+          state = existing;
+        }
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Advances the wildcard-aware positions over one character.
+   */
+  private long[] stepGlob(long[] positions, char c) {
+    long[] next = new long[positions.length];
+    int size = 0;
+    for(long position : positions) {
+      int k = pattern(position);
+      int p = offset(position);
+      if(p < patterns[k].length) {
+        char expected = patterns[k][p];
+        if(expected == '*') {
+          next[size++] = position;
+        } else if(expected == c) {
+          next[size++] = position(k, p + 1);
+        }
+      }
+    }
+    return closure(next, size);
+  }
+
+  /**
+   * Advances the positions that have matched the path character for character, which is
+   * what prefix matches are checked against.
+   */
+  private long[] stepLiteral(long[] positions, char c) {
+    long[] next = new long[positions.length];
+    int size = 0;
+    for(long position : positions) {
+      int k = pattern(position);
+      int p = offset(position);
+      if(p < patterns[k].length && patterns[k][p] == c) {
+        next[size++] = position(k, p + 1);
+      }
+    }
+    return Arrays.copyOf(next, size);
+  }
+
+  /**
+   * Adds the positions reachable by letting a wildcard match nothing, then sorts and
+   * de-duplicates so equal sets produce equal states.
+   */
+  private long[] closure(long[] positions, int size) {
+    long[] closed = Arrays.copyOf(positions, size * 2 + 1);
+    int closedSize = size;
+    for(int i = 0; i < closedSize; i++) {
+      int k = pattern(closed[i]);
+      int p = offset(closed[i]);
+      if(p < patterns[k].length && patterns[k][p] == '*') {
+        if(closedSize == closed.length) {
+          closed = Arrays.copyOf(closed, closed.length * 2);
+        }
+        closed[closedSize++] = position(k, p + 1);
+      }
+    }
+
+    Arrays.sort(closed, 0, closedSize);
+    int unique = 0;
+    for(int i = 0; i < closedSize; i++) {
+      if(unique == 0 || closed[unique - 1] != closed[i]) {
+        closed[unique++] = closed[i];
+      }
+    }
+    return Arrays.copyOf(closed, unique);
+  }
+
+  private static long position(int pattern, int offset) {
+    return ((long) pattern << 32) | offset;
+  }
+
+  private static int pattern(long position) {
+    return (int) (position >>> 32);
+  }
+
+  private static int offset(long position) {
+    return (int) position;
+  }
+
+  /**
+   * A point reached by walking some path through the automaton.
+   */
+  class State {
+    /**
+     * Result of matching the walked path exactly
+     */
+    final int match;
+    /**
+     * Result of matching the walked path either exactly or as the leading segments of a
+     * longer pattern
+     */
+    final int prefixMatch;
+
+    private final long[] glob;
+    private final long[] literal;
+    private final boolean isRoot;
+    private final Map<String, State> transitions = new ConcurrentHashMap<>();
+
+    private State(long[] glob, long[] literal, boolean isRoot) {
+      this.glob = glob;
+      this.literal = literal;
+      this.isRoot = isRoot;
+
+      int match = -1;
+      for(long position : glob) {
+        int k = pattern(position);
+        if(offset(position) == patterns[k].length) {
+          match = Math.max(match, weights[k]);
+        }
+      }
+
+      int prefixMatch = match;
+      for(long position : literal) {
+        int k = pattern(position);
+        int p = offset(position);
+        if(p < patterns[k].length && patterns[k][p] == '.') {
+          prefixMatch = Math.max(prefixMatch, weights[k]);
+        }
+      }
+
+      this.match = match;
+      this.prefixMatch = prefixMatch;
+    }
+
+    /**
+     * Returns the state reached by appending a segment to the path walked so far. The
+     * segment may itself contain dots.
+     */
+    State next(String segment) {
+      if(isDead()) {
+        return this;
+      }
+
+      State next = transitions.get(segment);
+      if(next == null) {
+        long[] glob = this.glob;
+        long[] literal = this.literal;
+        if(!isRoot) {
+          glob = stepGlob(glob, '.');
+          literal = stepLiteral(literal, '.');
+        }
+        for(int i = 0; i < segment.length(); i++) {
+          glob = stepGlob(glob, segment.charAt(i));
+          literal = stepLiteral(literal, segment.charAt(i));
+        }
+
+        next = intern(glob, literal, false);
+        if(transitions.size() < MAX_TRANSITIONS) {
+          transitions.putIfAbsent(segment, next);
+        }
+      }
+      return next;
+    }
+
+    PathMatcher matcher() {
+      return PathMatcher.this;
+    }
+
+    /**
+     * Whether no pattern can match this path or any path below it
+     */
+    boolean isDead() {
+      return glob.length == 0 && literal.length == 0;
+    }
+  }
+
+  private static class StateKey {
+    private final long[] glob;
+    private final long[] literal;
+    private final boolean isRoot;
+    private final int hashCode;
+
+    StateKey(long[] glob, long[] literal, boolean isRoot) {
+      this.glob = glob;
+      this.literal = literal;
+      this.isRoot = isRoot;
+      this.hashCode = 31 * (31 * Arrays.hashCode(glob) + Arrays.hashCode(literal)) + (isRoot ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o) return true;
+      if(o == null || getClass() != o.getClass()) return false;
+      StateKey stateKey = (StateKey) o;
+      return isRoot == stateKey.isRoot &&
+          Arrays.equals(glob, stateKey.glob) &&
+          Arrays.equals(literal, stateKey.literal);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
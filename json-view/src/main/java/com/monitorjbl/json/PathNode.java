@@ -0,0 +1,129 @@
+package com.monitorjbl.json;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One segment of a dotted field path. Nodes are interned under their parent, so moving
+ * into a field is a map lookup rather than a rebuild of the whole path, and a path can be
+ * identified by its node's id instead of by a string.
+ * <p>
+ * Each {@link CompiledView} owns its own tree of nodes, which goes away with the view. The
+ * tree is bounded in fan-out, depth and total size; past any of those limits nodes are
+ * still created but aren't shared (and get no id), so nothing keyed by them should be
+ * cached.
+ */
+final class PathNode {
+  /**
+   * Upper bounds on the children interned under one node, the depth of interned nodes and
+   * the number of nodes interned in one tree
+   */
+  static final int MAX_CHILDREN = 1024;
+  static final int MAX_DEPTH = 64;
+  static final int MAX_NODES = 16384;
+  /**
+   * Matcher states remembered on a node that isn't interned
+   */
+  private static final int STATE_SLOTS = 4;
+  static final int UNINTERNED = -1;
+
+  final PathNode parent;
+  final String segment;
+  final int id;
+  final int depth;
+  private final AtomicInteger ids;
+  private final Map<String, PathNode> children = new ConcurrentHashMap<>();
+  private volatile String path;
+  /**
+   * Matchers can't cache states for nodes that aren't interned, so those nodes keep their
+   * last few states themselves. Such nodes are only used by the writer that created them.
+   */
+  private PathMatcher.State[] states;
+  private int nextState;
+
+  private PathNode(PathNode parent, String segment, int id, AtomicInteger ids) {
+    this.parent = parent;
+    this.segment = segment;
+    this.id = id;
+    this.depth = parent == null ? 0 : parent.depth + 1;
+    this.ids = ids;
+  }
+
+  /**
+   * Creates the root of a new tree, the empty path
+   */
+  static PathNode root() {
+    return new PathNode(null, "", 0, new AtomicInteger());
+  }
+
+  PathNode child(String segment) {
+    PathNode child = children.get(segment);
+    if(child == null) {
+      if(id == UNINTERNED || children.size() >= MAX_CHILDREN || depth >= MAX_DEPTH || ids.get() >= MAX_NODES) {
+        return new PathNode(this, segment, UNINTERNED, ids);
+      }
+      child = children.computeIfAbsent(segment, s -> new PathNode(this, s, ids.incrementAndGet(), ids));
+    }
+    return child;
+  }
+
+  boolean isRoot() {
+    return parent == null;
+  }
+
+  boolean isInterned() {
+    return id != UNINTERNED;
+  }
+
+  /**
+   * The number of nodes interned in this node's tree, not counting the root
+   */
+  int treeSize() {
+    return ids.get();
+  }
+
+  /**
+   * Returns the state this node was last walked to by the matcher, if it still remembers it
+   */
+  PathMatcher.State state(PathMatcher matcher) {
+    if(states != null) {
+      for(PathMatcher.State state : states) {
+        if(state != null && state.matcher() == matcher) {
+          return state;
+        }
+      }
+    }
+    return null;
+  }
+
+  void remember(PathMatcher.State state) {
+    if(states == null) {
+      states = new PathMatcher.State[STATE_SLOTS];
+    }
+    states[nextState] = state;
+    nextState = (nextState + 1) % STATE_SLOTS;
+  }
+
+  /**
+   * Returns the dotted form of this path, built on first use
+   */
+  String path() {
+    String p = path;
+    if(p == null) {
+      p = parent == null || parent.isRoot() ? segment : parent.path() + "." + segment;
+      path = p;
+    }
+    return p;
+  }
+
+  @Override
+  public int hashCode() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return path();
+  }
+}
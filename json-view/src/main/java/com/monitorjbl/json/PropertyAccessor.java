@@ -0,0 +1,329 @@
+package com.monitorjbl.json;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reads one property of a bean. Accessors are built once per property: public getters of
+ * public classes get a generated lambda, which the JIT can inline like a direct call, and
+ * everything else goes through a method handle that skips the per-call access checks of
+ * reflection.
+ * <p>
+ * Properties of type {@code int}, {@code long} and {@code double} can also be read
+ * without boxing through {@link #getInt}, {@link #getLong} and {@link #getDouble}.
+ */
+abstract class PropertyAccessor {
+  enum Kind {
+    OBJECT(Object.class), INT(Integer.class), LONG(Long.class), DOUBLE(Double.class);
+
+    /**
+     * The type a value of this kind is boxed to
+     */
+    final Class<?> boxedType;
+
+    Kind(Class<?> boxedType) {
+      this.boxedType = boxedType;
+    }
+
+    static Kind of(Class<?> type) {
+      if(type == int.class) {
+        return INT;
+      } else if(type == long.class) {
+        return LONG;
+      } else if(type == double.class) {
+        return DOUBLE;
+      } else {
+        return OBJECT;
+      }
+    }
+  }
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  final Kind kind;
+
+  private PropertyAccessor(Kind kind) {
+    this.kind = kind;
+  }
+
+  abstract Object get(Object obj);
+
+  int getInt(Object obj) {
+    return ((Number) get(obj)).intValue();
+  }
+
+  long getLong(Object obj) {
+    return ((Number) get(obj)).longValue();
+  }
+
+  double getDouble(Object obj) {
+    return ((Number) get(obj)).doubleValue();
+  }
+
+  static PropertyAccessor of(Object property) {
+    try {
+      if(property instanceof Field) {
+        Field field = (Field) property;
+        field.setAccessible(true);
+        return fromHandle(LOOKUP.unreflectGetter(field), field.getType());
+      } else if(property instanceof Method) {
+        Method method = (Method) property;
+        if(canUseLambda(method)) {
+          return fromLambda(LOOKUP.unreflect(method), method.getDeclaringClass(), method.getReturnType());
+        }
+        method.setAccessible(true);
+        return fromHandle(LOOKUP.unreflect(method), method.getReturnType());
+      } else {
+        throw new RuntimeException("Unable to access property from " + property);
+      }
+    } catch(RuntimeException e) {
+      throw e;
+    } catch(Throwable e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Generated lambdas live next to this class, so they can only call methods that are
+   * public, on classes that are public and visible from this class's loader.
+   */
+  private static boolean canUseLambda(Method method) {
+    if(!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers()) || method.getReturnType() == void.class) {
+      return false;
+    }
+    for(Class<?> c = method.getDeclaringClass(); c != null; c = c.getEnclosingClass()) {
+      if(!Modifier.isPublic(c.getModifiers())) {
+        return false;
+      }
+    }
+    try {
+      Class<?> cls = method.getDeclaringClass();
+      return Class.forName(cls.getName(), false, PropertyAccessor.class.getClassLoader()) == cls;
+    } catch(ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static PropertyAccessor fromLambda(MethodHandle getter, Class<?> declaringClass, Class<?> type) throws Throwable {
+    switch(Kind.of(type)) {
+      case INT:
+        return new IntLambda((ToIntFunction<Object>) lambda(getter, ToIntFunction.class, "applyAsInt", int.class, declaringClass, int.class));
+      case LONG:
+        return new LongLambda((ToLongFunction<Object>) lambda(getter, ToLongFunction.class, "applyAsLong", long.class, declaringClass, long.class));
+      case DOUBLE:
+        return new DoubleLambda((ToDoubleFunction<Object>) lambda(getter, ToDoubleFunction.class, "applyAsDouble", double.class, declaringClass, double.class));
+      default:
+        Class<?> returned = type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+        return new ObjectLambda((Function<Object, Object>) lambda(getter, Function.class, "apply", Object.class, declaringClass, returned));
+    }
+  }
+
+  private static Object lambda(MethodHandle getter, Class<?> functionalInterface, String name, Class<?> samReturn,
+                               Class<?> declaringClass, Class<?> returned) throws Throwable {
+    CallSite site = LambdaMetafactory.metafactory(LOOKUP, name, MethodType.methodType(functionalInterface),
+        MethodType.methodType(samReturn, Object.class), getter, MethodType.methodType(returned, declaringClass));
+    return site.getTarget().invoke();
+  }
+
+  private static PropertyAccessor fromHandle(MethodHandle getter, Class<?> type) {
+    if(getter.type().parameterCount() == 0) {
+      // Static members ignore the instance
+      getter = MethodHandles.dropArguments(getter, 0, Object.class);
+    }
+
+    Kind kind = Kind.of(type);
+    if(kind == Kind.OBJECT) {
+      return new ObjectHandle(getter.asType(MethodType.methodType(Object.class, Object.class)));
+    }
+    return new PrimitiveHandle(kind, getter.asType(MethodType.methodType(type, Object.class)),
+        getter.asType(MethodType.methodType(Object.class, Object.class)));
+  }
+
+  /**
+   * Wraps checked exceptions from getters, which both method handles and getters bound as
+   * lambdas pass through undeclared
+   */
+  private static RuntimeException rethrow(Throwable e) {
+    if(e instanceof RuntimeException) {
+      return (RuntimeException) e;
+    } else if(e instanceof Error) {
+      throw (Error) e;
+    }
+    return new RuntimeException(e);
+  }
+
+  private static class ObjectLambda extends PropertyAccessor {
+    private final Function<Object, Object> getter;
+
+    ObjectLambda(Function<Object, Object> getter) {
+      super(Kind.OBJECT);
+      this.getter = getter;
+    }
+
+    @Override
+    Object get(Object obj) {
+      try {
+        return getter.apply(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+  }
+
+  private static class IntLambda extends PropertyAccessor {
+    private final ToIntFunction<Object> getter;
+
+    IntLambda(ToIntFunction<Object> getter) {
+      super(Kind.INT);
+      this.getter = getter;
+    }
+
+    @Override
+    Object get(Object obj) {
+      try {
+        return getter.applyAsInt(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    int getInt(Object obj) {
+      try {
+        return getter.applyAsInt(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+  }
+
+  private static class LongLambda extends PropertyAccessor {
+    private final ToLongFunction<Object> getter;
+
+    LongLambda(ToLongFunction<Object> getter) {
+      super(Kind.LONG);
+      this.getter = getter;
+    }
+
+    @Override
+    Object get(Object obj) {
+      try {
+        return getter.applyAsLong(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    long getLong(Object obj) {
+      try {
+        return getter.applyAsLong(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+  }
+
+  private static class DoubleLambda extends PropertyAccessor {
+    private final ToDoubleFunction<Object> getter;
+
+    DoubleLambda(ToDoubleFunction<Object> getter) {
+      super(Kind.DOUBLE);
+      this.getter = getter;
+    }
+
+    @Override
+    Object get(Object obj) {
+      try {
+        return getter.applyAsDouble(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    double getDouble(Object obj) {
+      try {
+        return getter.applyAsDouble(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+  }
+
+  private static class ObjectHandle extends PropertyAccessor {
+    private final MethodHandle getter;
+
+    ObjectHandle(MethodHandle getter) {
+      super(Kind.OBJECT);
+      this.getter = getter;
+    }
+
+    @Override
+    Object get(Object obj) {
+      try {
+        return (Object) getter.invokeExact(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+  }
+
+  private static class PrimitiveHandle extends PropertyAccessor {
+    private final MethodHandle getter;
+    private final MethodHandle boxingGetter;
+
+    PrimitiveHandle(Kind kind, MethodHandle getter, MethodHandle boxingGetter) {
+      super(kind);
+      this.getter = getter;
+      this.boxingGetter = boxingGetter;
+    }
+
+    @Override
+    Object get(Object obj) {
+      try {
+        return (Object) boxingGetter.invokeExact(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    int getInt(Object obj) {
+      try {
+        return (int) getter.invokeExact(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    long getLong(Object obj) {
+      try {
+        return (long) getter.invokeExact(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    double getDouble(Object obj) {
+      try {
+        return (double) getter.invokeExact(obj);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.monitorjbl.json;
+
+import com.monitorjbl.json.JsonViewSerializer.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * A serialization of a {@link JsonView} that is written a bounded amount at a time. Each
+ * call to {@link #resume(int)} takes up to the given number of steps and returns, so the
+ * caller can flush the generator, wait for its output to drain or let other work run
+ * before carrying on. Roughly, a step writes one value.
+ * <p>
+ * A serialization that won't be resumed to the end should be closed, so that the streams it
+ * was partway through are closed too.
+ * <p>
+ * Instances are created by {@link JsonViewSerializer#startSerialization} and are not
+ * thread-safe.
+ */
+public class ResumableSerialization implements AutoCloseable {
+  private final JsonWriter writer;
+  private final Object value;
+  private boolean started;
+  private boolean done;
+  private boolean closed;
+  private boolean failed;
+
+  ResumableSerialization(JsonWriter writer, Object value) {
+    this.writer = writer;
+    this.value = value;
+  }
+
+  /**
+   * Writes some more of the serialization.
+   *
+   * @param maxSteps The most steps to take, at least 1
+   * @return Whether the serialization has been written completely
+   * @throws IOException If writing fails, after which the serialization can't be resumed
+   */
+  public boolean resume(int maxSteps) throws IOException {
+    if(maxSteps < 1) {
+      throw new IllegalArgumentException("Steps must be at least 1");
+    }
+    if(failed) {
+      throw new IllegalStateException("Serialization failed and can't be resumed");
+    }
+    if(closed && !done) {
+      throw new IllegalStateException("Serialization was closed before it was done");
+    }
+    if(!done) {
+      try {
+        if(!started) {
+          started = true;
+          writer.start(writer.path, writer.currentMatch, writer.referringField, value);
+          maxSteps--;
+        }
+        done = writer.run(0, maxSteps);
+      } catch(Throwable e) {
+        failed = true;
+        writer.abandon(0, e);
+        throw e;
+      }
+    }
+    return done;
+  }
+
+  /**
+   * @return Whether the serialization has been written completely, which a failed one never is
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Stops the serialization, closing any streams it hasn't finished writing. What was
+   * written so far is left as it is. Closing a serialization that is done, failed or already
+   * closed does nothing.
+   *
+   * @throws IOException If any of the streams failed to close
+   */
+  @Override
+  public void close() throws IOException {
+    // A failed serialization closed its streams when it failed
+    if(closed || done || failed) {
+      closed = true;
+      return;
+    }
+    closed = true;
+
+    // Failures to close are collected on this exception, it's only thrown if there are any
+    IOException failure = new IOException("Failed to close the serialization's streams");
+    writer.abandon(0, failure);
+    if(failure.getSuppressed().length > 0) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package com.monitorjbl.json;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The custom serializers (or container adapters) registered on a {@link JsonViewSerializer}.
+ * Registering copies the serializers into a new {@link Snapshot}, so lookups never lock and
+ * each serialization sees one consistent set of serializers, even while others are
+ * registered.
+ *
+ * @param <T> The type of serializer
+ */
+class SerializerRegistry<T> {
+  private volatile Snapshot<T> snapshot = new Snapshot<>(Collections.emptyMap());
+
+  synchronized void register(Class<?> cls, T serializer) {
+    Map<Class<?>, T> serializers = snapshot.serializers;
+    if(serializers.containsKey(cls)) {
+      throw new IllegalArgumentException("Class " + cls + " already has a serializer registered (" + serializers.get(cls) + ")");
+    }
+    Map<Class<?>, T> copy = new HashMap<>(serializers);
+    copy.put(cls, serializer);
+    snapshot = new Snapshot<>(copy);
+  }
+
+  synchronized void unregister(Class<?> cls) {
+    if(snapshot.serializers.containsKey(cls)) {
+      Map<Class<?>, T> copy = new HashMap<>(snapshot.serializers);
+      copy.remove(cls);
+      snapshot = new Snapshot<>(copy);
+    }
+  }
+
+  Snapshot<T> snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * An immutable set of registered serializers. A serializer registered for a class also
+   * applies to its subclasses, and one registered for an interface to the classes that
+   * implement it. Which serializer applies to a runtime class is worked out once.
+   */
+  static final class Snapshot<T> {
+    private final Map<Class<?>, T> serializers;
+    private final ClassValue<Optional<T>> resolved = new ClassValue<Optional<T>>() {
+      @Override
+      protected Optional<T> computeValue(Class<?> type) {
+        return Optional.ofNullable(resolve(type));
+      }
+    };
+
+    private Snapshot(Map<Class<?>, T> serializers) {
+      this.serializers = serializers;
+    }
+
+    boolean isEmpty() {
+      return serializers.isEmpty();
+    }
+
+    /**
+     * @return The serializer for values of the class, or null if there isn't one
+     */
+    T find(Class<?> cls) {
+      return serializers.isEmpty() ? null : resolved.get(cls).orElse(null);
+    }
+
+    /**
+     * Classes win over interfaces, and nearer ancestors over farther ones
+     */
+    private T resolve(Class<?> cls) {
+      for(Class<?> c = cls; c != null; c = c.getSuperclass()) {
+        T serializer = serializers.get(c);
+        if(serializer != null) {
+          return serializer;
+        }
+      }
+
+      Deque<Class<?>> interfaces = new ArrayDeque<>();
+      Set<Class<?>> seen = new HashSet<>();
+      for(Class<?> c = cls; c != null; c = c.getSuperclass()) {
+        Collections.addAll(interfaces, c.getInterfaces());
+      }
+      while(!interfaces.isEmpty()) {
+        Class<?> iface = interfaces.poll();
+        if(seen.add(iface)) {
+          T serializer = serializers.get(iface);
+          if(serializer != null) {
+            return serializer;
+          }
+          Collections.addAll(interfaces, iface.getInterfaces());
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.monitorjbl.json;
+
+/**
+ * Decides how much work is put into each (view, class) pair, based on how often it's used.
+ * Like JIT tiers, a pair starts out interpreted and is promoted as it gets hotter:
+ * <ol>
+ * <li>Interpreted: the plan is worked out every time an object is written, and not kept.</li>
+ * <li>Planned: the plan is cached on the view after {@link #planThreshold} uses.</li>
+ * <li>Generated: a writer class is generated after {@link #writerThreshold} uses, if
+ * generated writers are enabled.</li>
+ * </ol>
+ * Every {@link #sweepInterval} lookups on a view, pairs that weren't used often enough
+ * since the last sweep are demoted a tier, and pairs that weren't used at all are
+ * dropped. Views that go cold altogether are evicted from the serializer's cache.
+ */
+class TierPolicy {
+  static final int DEFAULT_PLAN_THRESHOLD = 2;
+  static final int DEFAULT_WRITER_THRESHOLD = 1000;
+  static final int DEFAULT_SWEEP_INTERVAL = 10_000;
+
+  volatile int planThreshold = DEFAULT_PLAN_THRESHOLD;
+  volatile int writerThreshold = DEFAULT_WRITER_THRESHOLD;
+  volatile int sweepInterval = DEFAULT_SWEEP_INTERVAL;
+  volatile boolean generateWriters = false;
+}
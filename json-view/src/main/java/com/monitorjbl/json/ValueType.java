@@ -0,0 +1,183 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.temporal.Temporal;
+import java.time.temporal.TemporalAmount;
+import java.util.Collection;
+import java.util.Currency;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.BaseStream;
+
+/**
+ * How a value is written, resolved once per runtime class. Resolution follows the order
+ * values used to be checked in, so a class that fits several types (say, a {@link Map}
+ * that's also a {@link List}) is written the same way as before.
+ */
+enum ValueType {
+  STRING(Category.PRIMITIVE),
+  INTEGER(Category.PRIMITIVE),
+  LONG(Category.PRIMITIVE),
+  SHORT(Category.PRIMITIVE),
+  DOUBLE(Category.PRIMITIVE),
+  FLOAT(Category.PRIMITIVE),
+  CHARACTER(Category.PRIMITIVE),
+  BYTE(Category.PRIMITIVE),
+  BOOLEAN(Category.PRIMITIVE),
+  BIG_DECIMAL(Category.PRIMITIVE),
+  DATE(Category.SPECIAL),
+  TEMPORAL(Category.SPECIAL),
+  TO_STRING(Category.SPECIAL),
+  CLASS(Category.SPECIAL),
+  /**
+   * Values Jackson writes as a single token, or close to it, with a serializer of its own
+   */
+  JACKSON(Category.SPECIAL),
+  ENUM(Category.ENUM),
+  BYTE_ARRAY(Category.LIST),
+  INT_ARRAY(Category.LIST),
+  LONG_ARRAY(Category.LIST),
+  DOUBLE_ARRAY(Category.LIST),
+  FLOAT_ARRAY(Category.LIST),
+  SHORT_ARRAY(Category.LIST),
+  CHAR_ARRAY(Category.LIST),
+  BOOLEAN_ARRAY(Category.LIST),
+  ARRAY(Category.LIST),
+  /**
+   * Lists with random access, which are written by index
+   */
+  LIST(Category.LIST),
+  ITERABLE(Category.LIST),
+  /**
+   * Streams, iterators and spliterators, which are consumed as they're written
+   */
+  STREAM(Category.LIST),
+  MAP(Category.MAP),
+  OBJECT(Category.OBJECT);
+
+  enum Category {
+    PRIMITIVE, SPECIAL, ENUM, LIST, MAP, OBJECT
+  }
+
+  private static final ClassValue<ValueType> TYPES = new ClassValue<ValueType>() {
+    @Override
+    protected ValueType computeValue(Class<?> type) {
+      return resolve(type);
+    }
+  };
+
+  final Category category;
+
+  ValueType(Category category) {
+    this.category = category;
+  }
+
+  static ValueType of(Class<?> cls) {
+    return TYPES.get(cls);
+  }
+
+  private static ValueType resolve(Class<?> cls) {
+    if(cls == String.class) {
+      return STRING;
+    } else if(cls == Integer.class) {
+      return INTEGER;
+    } else if(cls == Long.class) {
+      return LONG;
+    } else if(cls == Short.class) {
+      return SHORT;
+    } else if(cls == Double.class) {
+      return DOUBLE;
+    } else if(cls == Float.class) {
+      return FLOAT;
+    } else if(cls == Character.class) {
+      return CHARACTER;
+    } else if(cls == Byte.class) {
+      return BYTE;
+    } else if(cls == Boolean.class) {
+      return BOOLEAN;
+    } else if(BigDecimal.class.isAssignableFrom(cls)) {
+      return BIG_DECIMAL;
+    } else if(Date.class.isAssignableFrom(cls)) {
+      return DATE;
+    } else if(Temporal.class.isAssignableFrom(cls)) {
+      return TEMPORAL;
+    } else if(cls == URL.class || cls == URI.class || cls == UUID.class) {
+      return TO_STRING;
+    } else if(cls == Class.class) {
+      return CLASS;
+    } else if(cls.isEnum()) {
+      return ENUM;
+    } else if(List.class.isAssignableFrom(cls) && RandomAccess.class.isAssignableFrom(cls)) {
+      return LIST;
+    } else if(Collection.class.isAssignableFrom(cls)) {
+      return ITERABLE;
+    } else if(cls == byte[].class) {
+      return BYTE_ARRAY;
+    } else if(cls == int[].class) {
+      return INT_ARRAY;
+    } else if(cls == long[].class) {
+      return LONG_ARRAY;
+    } else if(cls == double[].class) {
+      return DOUBLE_ARRAY;
+    } else if(cls == float[].class) {
+      return FLOAT_ARRAY;
+    } else if(cls == short[].class) {
+      return SHORT_ARRAY;
+    } else if(cls == char[].class) {
+      return CHAR_ARRAY;
+    } else if(cls == boolean[].class) {
+      return BOOLEAN_ARRAY;
+    } else if(cls.isArray()) {
+      return ARRAY;
+    } else if(Map.class.isAssignableFrom(cls)) {
+      return MAP;
+    } else if(BaseStream.class.isAssignableFrom(cls) || Iterator.class.isAssignableFrom(cls) || Spliterator.class.isAssignableFrom(cls)) {
+      return STREAM;
+    } else if(isJacksonLeaf(cls)) {
+      return JACKSON;
+    } else if(Iterable.class.isAssignableFrom(cls)) {
+      // After leaves, some of them (like Path) are iterable too
+      return ITERABLE;
+    } else {
+      return OBJECT;
+    }
+  }
+
+  private static boolean isJacksonLeaf(Class<?> cls) {
+    return Number.class.isAssignableFrom(cls)
+        || JsonNode.class.isAssignableFrom(cls)
+        || cls == AtomicBoolean.class
+        || cls == OptionalInt.class || cls == OptionalLong.class || cls == OptionalDouble.class
+        || cls == Locale.class
+        || Currency.class.isAssignableFrom(cls)
+        || TimeZone.class.isAssignableFrom(cls)
+        || ZoneId.class.isAssignableFrom(cls)
+        || TemporalAmount.class.isAssignableFrom(cls)
+        || cls == File.class
+        || Path.class.isAssignableFrom(cls)
+        || cls == Pattern.class
+        || Charset.class.isAssignableFrom(cls)
+        || InetAddress.class.isAssignableFrom(cls);
+  }
+}
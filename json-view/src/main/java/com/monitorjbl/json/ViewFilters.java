@@ -0,0 +1,167 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass;
+import com.fasterxml.jackson.databind.introspect.AnnotatedField;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMethod;
+import com.fasterxml.jackson.databind.introspect.NopAnnotationIntrospector;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.databind.ser.PropertyFilter;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link CompiledView} translated into Jackson property filters, so that Jackson can
+ * write the view on its own. Only views whose class matches include and exclude direct
+ * properties by name can be translated: no wildcards, nested paths or transforms, and the
+ * {@link MatcherBehavior#CLASS_FIRST} behavior. In such a view a class is filtered the same
+ * way wherever it appears in the object graph, which is all a filter per class can express.
+ */
+class ViewFilters extends FilterProvider {
+  static final String FILTER_ID = ViewFilters.class.getName();
+
+  private final CompiledView view;
+  private final Map<Class<?>, PropertyFilter> filters = new ConcurrentHashMap<>();
+
+  ViewFilters(CompiledView view) {
+    this.view = view;
+  }
+
+  static boolean canTranslate(Map<Class<?>, Match> matches, MatcherBehavior matcherBehavior) {
+    if(matcherBehavior != MatcherBehavior.CLASS_FIRST) {
+      return false;
+    }
+    for(Match match : matches.values()) {
+      if(!match.getTransforms().isEmpty() || !arePropertyNames(match.getIncludes()) || !arePropertyNames(match.getExcludes())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean arePropertyNames(Set<String> patterns) {
+    for(String pattern : patterns) {
+      if(pattern.isEmpty() || pattern.indexOf('.') >= 0 || pattern.indexOf('*') >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copies the mapper, adding the filter to every bean. Returns nothing if the mapper
+   * can't be copied.
+   */
+  static Optional<ObjectMapper> filteringCopy(ObjectMapper mapper) {
+    try {
+      ObjectMapper copy = mapper.copy();
+      copy.setAnnotationIntrospector(AnnotationIntrospector.pair(new FilterIdIntrospector(), copy.getSerializationConfig().getAnnotationIntrospector()));
+      return Optional.of(copy);
+    } catch(IllegalStateException e) {
+      // Subclasses that don't override copy()
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public PropertyFilter findPropertyFilter(Object filterId, Object valueToFilter) {
+    if(valueToFilter == null) {
+      return SimpleBeanPropertyFilter.serializeAll();
+    }
+    return filters.computeIfAbsent(valueToFilter.getClass(), this::filterFor);
+  }
+
+  /**
+   * The old lookup has no value to go by, so nothing is filtered through it
+   */
+  @Override
+  @Deprecated
+  @SuppressWarnings("deprecation") // Still abstract in FilterProvider, so it has to be implemented
+  public com.fasterxml.jackson.databind.ser.BeanPropertyFilter findFilter(Object filterId) {
+    return null;
+  }
+
+  /**
+   * Unions the matches on the class and its parents, like the regular writer does
+   */
+  private PropertyFilter filterFor(Class<?> cls) {
+    Set<String> excluded = new HashSet<>();
+    Set<String> included = new HashSet<>();
+    Stack<Class<?>> classes = new Stack<>();
+    classes.push(cls);
+    while(!classes.isEmpty()) {
+      Class<?> c = classes.pop();
+      Match match = view.getMatch(c);
+      if(match != null) {
+        excluded.addAll(match.getExcludes());
+        included.addAll(match.getIncludes());
+      }
+      for(Class<?> iface : c.getInterfaces()) {
+        classes.push(iface);
+      }
+      if(c.getSuperclass() != null && !c.getSuperclass().equals(Object.class)) {
+        classes.push(c.getSuperclass());
+      }
+    }
+
+    excluded.removeAll(included);
+    return excluded.isEmpty() ? SimpleBeanPropertyFilter.serializeAll() : new ExcludingFilter(excluded);
+  }
+
+  /**
+   * Matches name Java properties, which {@code @JsonProperty} may have renamed in the JSON
+   */
+  private static String propertyName(PropertyWriter writer) {
+    AnnotatedMember member = writer.getMember();
+    String name = member == null ? null : member.getName();
+    if(member instanceof AnnotatedField) {
+      return name;
+    } else if(member instanceof AnnotatedMethod && name.startsWith("get") && name.length() > 3) {
+      return Character.toLowerCase(name.charAt(3)) + name.substring(4);
+    } else if(member instanceof AnnotatedMethod && name.startsWith("is") && name.length() > 2) {
+      return Character.toLowerCase(name.charAt(2)) + name.substring(3);
+    }
+    return writer.getName();
+  }
+
+  private static class ExcludingFilter extends SimpleBeanPropertyFilter {
+    private final Set<String> excluded;
+
+    ExcludingFilter(Set<String> excluded) {
+      this.excluded = excluded;
+    }
+
+    @Override
+    protected boolean include(BeanPropertyWriter writer) {
+      return !excluded.contains(propertyName(writer));
+    }
+
+    @Override
+    protected boolean include(PropertyWriter writer) {
+      return !excluded.contains(propertyName(writer));
+    }
+  }
+
+  /**
+   * Puts every bean under the view's filter
+   */
+  private static class FilterIdIntrospector extends NopAnnotationIntrospector {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object findFilterId(Annotated annotated) {
+      return annotated instanceof AnnotatedClass ? FILTER_ID : null;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.monitorjbl.json.JsonViewSerializer.AccessibleProperty;
+import com.monitorjbl.json.PropertyAccessor.Kind;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * The result of applying a {@link CompiledView} to one class at one point of the object
+ * graph. It holds every decision that doesn't depend on the instance being written, so
+ * it only has to be worked out once per class and path rather than once per object.
+ */
+class ViewPlan {
+  /**
+   * The match that nested values of this object are written with
+   */
+  final Match match;
+  /**
+   * The properties to write, in output order
+   */
+  final PlannedProperty[] properties;
+
+  private volatile GeneratedWriter generatedWriter;
+  private volatile boolean generationFailed;
+  /**
+   * The class of the last writer generated for this plan. Promoting the plan again reuses
+   * it, unless it has been unloaded since.
+   */
+  private volatile WeakReference<Class<? extends GeneratedWriter>> generatedClass;
+
+  ViewPlan(Match match, List<PlannedProperty> properties) {
+    this.match = match;
+    this.properties = properties.toArray(new PlannedProperty[0]);
+  }
+
+  /**
+   * The writer generated for this plan, if it has been promoted to one
+   */
+  GeneratedWriter generatedWriter() {
+    return generatedWriter;
+  }
+
+  /**
+   * Generates a writer for this plan, unless it already has one or generation failed
+   * before. If one can't be generated, the properties keep being written one by one.
+   */
+  void promote(Class<?> cls) {
+    if(generatedWriter == null && !generationFailed) {
+      synchronized(this) {
+        if(generatedWriter == null && !generationFailed) {
+          Class<? extends GeneratedWriter> type = generatedClass == null ? null : generatedClass.get();
+          GeneratedWriter writer = type != null ? WriterGenerator.instantiate(type, this) : WriterGenerator.generate(cls, this);
+          if(writer != null && type == null) {
+            generatedClass = new WeakReference<>(writer.getClass());
+          }
+          generatedWriter = writer;
+          generationFailed = writer == null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the generated writer, if any. Its class can be unloaded once nothing uses it,
+   * until then promoting the plan again reuses it.
+   */
+  void demote() {
+    generatedWriter = null;
+  }
+
+  static class PlannedProperty {
+    final AccessibleProperty property;
+    final String name;
+    /**
+     * The name, encoded once for every generator that writes it
+     */
+    final SerializedString serializedName;
+    final BiFunction<Object, Object, Object> transform;
+    final JsonSerializer<Object> serializer;
+    /**
+     * The inclusion policy from annotations or the view, or null if the mapper's default applies
+     */
+    final InclusionPolicy inclusion;
+    /**
+     * The primitive type the value can be written as without boxing it, or
+     * {@link Kind#OBJECT} if it has to be read as an object
+     */
+    final Kind primitiveKind;
+
+    PlannedProperty(AccessibleProperty property, String name, BiFunction<Object, Object, Object> transform, JsonSerializer<Object> serializer,
+                    InclusionPolicy inclusion) {
+      this.property = property;
+      this.name = name;
+      this.serializedName = new SerializedString(name);
+      this.transform = transform;
+      this.serializer = serializer;
+      this.inclusion = inclusion;
+      this.primitiveKind = transform == null && serializer == null ? Kind.of(property.type) : Kind.OBJECT;
+    }
+
+    Object read(Object obj) {
+      Object val = property.get(obj);
+      return transform == null ? val : transform.apply(obj, val);
+    }
+
+    /**
+     * Writes the value straight from the accessor, only valid for primitive properties
+     */
+    void writePrimitive(Object obj, JsonGenerator jgen) throws IOException {
+      switch(primitiveKind) {
+        case INT:
+          jgen.writeNumber(property.accessor().getInt(obj));
+          break;
+        case LONG:
+          jgen.writeNumber(property.accessor().getLong(obj));
+          break;
+        case DOUBLE:
+          jgen.writeNumber(property.accessor().getDouble(obj));
+          break;
+        default:
+          throw new IllegalStateException(name + " is not a primitive property");
+      }
+    }
+  }
+}
@@ -0,0 +1,523 @@
+package com.monitorjbl.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.monitorjbl.json.PropertyAccessor.Kind;
+import com.monitorjbl.json.ViewPlan.PlannedProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates a {@link GeneratedWriter} subclass for one {@link ViewPlan}. For each planned
+ * property, the generated {@code write} method either
+ * <ul>
+ * <li>calls a public getter directly and writes the primitive it returns,</li>
+ * <li>calls a public getter directly and hands the value to the regular writer, or</li>
+ * <li>hands the whole property to the regular writer, for anything it can't call.</li>
+ * </ul>
+ * The included properties are baked into the class, so there is no loop over the plan and
+ * no filtering left to do when writing. The method starts with a switch on the property to
+ * start from, and returns as soon as a property opens a container, so the regular writer
+ * can write the container and call it again for the rest.
+ * <p>
+ * Each class is defined in its own class loader, a child of the bean's loader, so it can
+ * be unloaded along with the plan it was generated for.
+ */
+class WriterGenerator {
+  /**
+   * Branch offsets are 16 bits, so a writer's code has to stay under this size
+   */
+  private static final int MAX_CODE_LENGTH = Short.MAX_VALUE;
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  private static final String BASE = internalName(GeneratedWriter.class);
+  private static final String JSON_GENERATOR = internalName(JsonGenerator.class);
+  private static final String SERIALIZABLE_STRING = internalName(SerializableString.class);
+  private static final String WRITE_DESCRIPTOR = "(Ljava/lang/Object;L" + JSON_GENERATOR + ";Ljava/lang/Object;I)I";
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_PROTECTED = 0x0004;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int ILOAD = 0x15;
+  private static final int ALOAD_0 = 0x2a;
+  private static final int IFEQ = 0x99;
+  private static final int GOTO = 0xa7;
+  private static final int TABLESWITCH = 0xaa;
+  private static final int IRETURN = 0xac;
+  private static final int RETURN = 0xb1;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKEINTERFACE = 0xb9;
+  private static final int CHECKCAST = 0xc0;
+
+  // Local variable slots of the write method
+  private static final int THIS = 0;
+  private static final int BEAN = 1;
+  private static final int JGEN = 2;
+  private static final int WRITER = 3;
+  private static final int FROM = 4;
+
+  private WriterGenerator() {}
+
+  /**
+   * Returns a new writer for the plan, or null if the class can't have one generated.
+   */
+  static GeneratedWriter generate(Class<?> cls, ViewPlan plan) {
+    ClassLoader beanLoader = cls.getClassLoader();
+    if(beanLoader == null) {
+      return null;
+    }
+
+    try {
+      String name = GeneratedWriter.class.getPackage().getName() + ".generated." + cls.getSimpleName() + "Writer" + COUNTER.incrementAndGet();
+      byte[] bytes = new ClassBuilder(name.replace('.', '/'), beanLoader).build(plan);
+      if(bytes == null) {
+        return null;
+      }
+
+      return instantiate(new WriterLoader(beanLoader).define(name, bytes).asSubclass(GeneratedWriter.class), plan);
+    } catch(LinkageError | IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns a writer of a class generated earlier for the plan, or null if it can't be
+   * created.
+   */
+  static GeneratedWriter instantiate(Class<? extends GeneratedWriter> type, ViewPlan plan) {
+    try {
+      GeneratedWriter writer = type.getDeclaredConstructor().newInstance();
+      writer.plan = plan;
+      return writer;
+    } catch(ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static String internalName(Class<?> cls) {
+    return cls.getName().replace('.', '/');
+  }
+
+  private static String descriptor(Class<?> cls) {
+    if(cls.isArray()) {
+      return internalName(cls);
+    } else if(cls == int.class) {
+      return "I";
+    } else if(cls == long.class) {
+      return "J";
+    } else if(cls == double.class) {
+      return "D";
+    }
+    return "L" + internalName(cls) + ";";
+  }
+
+  /**
+   * Whether generated code can call the getter directly: it has to be a public instance
+   * method of a public class that the bean's class loader resolves to the same class.
+   */
+  private static boolean canCall(Method method, ClassLoader beanLoader) {
+    if(!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())) {
+      return false;
+    }
+    Class<?> type = method.getReturnType();
+    if(type.isPrimitive() && Kind.of(type) == Kind.OBJECT) {
+      // Other primitives would have to be boxed, which the regular path does anyway
+      return false;
+    }
+    for(Class<?> c = method.getDeclaringClass(); c != null; c = c.getEnclosingClass()) {
+      if(!Modifier.isPublic(c.getModifiers())) {
+        return false;
+      }
+    }
+    try {
+      Class<?> cls = method.getDeclaringClass();
+      return Class.forName(cls.getName(), false, beanLoader) == cls;
+    } catch(ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Loads generated writers, resolving the writer's base class and the Jackson types it
+   * uses from this library's loader and everything else from the bean's.
+   */
+  private static class WriterLoader extends ClassLoader {
+    private static final ClassLoader LIBRARY_LOADER = GeneratedWriter.class.getClassLoader();
+
+    WriterLoader(ClassLoader beanLoader) {
+      super(beanLoader);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if(name.equals(GeneratedWriter.class.getName()) || name.equals(JsonGenerator.class.getName())
+          || name.equals(SerializableString.class.getName())) {
+        return LIBRARY_LOADER.loadClass(name);
+      }
+      return super.loadClass(name, resolve);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  /**
+   * Just enough of a class file writer for generated writers: one constructor and one
+   * method, whose only branches land where nothing but the arguments is live, so every
+   * stack map frame is the same as the method's initial frame.
+   */
+  private static class ClassBuilder {
+    private final String name;
+    private final ClassLoader beanLoader;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolSize = 1;
+
+    private byte[] code = new byte[256];
+    private int codeLength;
+    private final List<Integer> frames = new ArrayList<>();
+    /**
+     * Branches to the start of the next property
+     */
+    private final List<Integer> toNext = new ArrayList<>();
+
+    ClassBuilder(String name, ClassLoader beanLoader) {
+      this.name = name;
+      this.beanLoader = beanLoader;
+    }
+
+    byte[] build(ViewPlan plan) throws IOException {
+      int count = plan.properties.length;
+      if(count == 0) {
+        u1(ICONST_0);
+        u1(IRETURN);
+      } else {
+        // switch(from), with a case for each property falling through to the next one
+        u1(ILOAD);
+        u1(FROM);
+        int tableswitch = codeLength;
+        u1(TABLESWITCH);
+        while(codeLength % 4 != 0) {
+          u1(0);
+        }
+        int table = codeLength;
+        for(int i = 0; i < 3 + count; i++) {
+          u4(0);
+        }
+
+        int[] cases = new int[count + 1];
+        for(int i = 0; i < count; i++) {
+          cases[i] = bindNext();
+          writeProperty(plan.properties[i], i);
+          if(codeLength > MAX_CODE_LENGTH) {
+            return null;
+          }
+        }
+        cases[count] = bindNext();
+        pushInt(count);
+        u1(IRETURN);
+
+        setU4(table, cases[count] - tableswitch);
+        setU4(table + 4, 0);
+        setU4(table + 8, count - 1);
+        for(int i = 0; i < count; i++) {
+          setU4(table + 12 + i * 4, cases[i] - tableswitch);
+        }
+      }
+
+      byte[] constructor = {(byte) ALOAD_0, (byte) INVOKESPECIAL, 0, 0, (byte) RETURN};
+      int superConstructor = methodRef(BASE, "<init>", "()V", false);
+      constructor[2] = (byte) (superConstructor >> 8);
+      constructor[3] = (byte) superConstructor;
+
+      int thisClass = classRef(name);
+      int superClass = classRef(BASE);
+      int codeName = utf8("Code");
+      int stackMapName = utf8("StackMapTable");
+      int constructorName = utf8("<init>");
+      int constructorDescriptor = utf8("()V");
+      int writeName = utf8("write");
+      int writeDescriptor = utf8(WRITE_DESCRIPTOR);
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(52);
+      out.writeShort(poolSize);
+      pool.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(2); // methods
+
+      writeMethod(out, ACC_PUBLIC, constructorName, constructorDescriptor, codeName, 1, 1, constructor, stackMapName, new ArrayList<>());
+      writeMethod(out, ACC_PROTECTED, writeName, writeDescriptor, codeName, 5, 5, Arrays.copyOf(code, codeLength), stackMapName, frames);
+
+      out.writeShort(0); // attributes
+      return bytes.toByteArray();
+    }
+
+    private void writeProperty(PlannedProperty planned, int index) throws IOException {
+      Object property = planned.property.property;
+      boolean direct = planned.transform == null && property instanceof Method && canCall((Method) property, beanLoader);
+
+      if(direct && planned.primitiveKind != Kind.OBJECT) {
+        // if(canWritePrimitive(writer, i)) { jgen.writeFieldName(name(i)); jgen.writeNumber(bean.getX()); } else if(writeProperty(writer, bean, i)) { return i + 1; }
+        Method getter = (Method) property;
+        load(THIS);
+        load(WRITER);
+        pushInt(index);
+        invoke(INVOKEVIRTUAL, BASE, "canWritePrimitive", "(Ljava/lang/Object;I)Z", false);
+        int ifeq = branch(IFEQ);
+
+        load(JGEN);
+        load(THIS);
+        pushInt(index);
+        invoke(INVOKEVIRTUAL, BASE, "name", "(I)L" + SERIALIZABLE_STRING + ";", false);
+        invoke(INVOKEVIRTUAL, JSON_GENERATOR, "writeFieldName", "(L" + SERIALIZABLE_STRING + ";)V", false);
+        load(JGEN);
+        callGetter(getter);
+        invoke(INVOKEVIRTUAL, JSON_GENERATOR, "writeNumber", "(" + descriptor(getter.getReturnType()) + ")V", false);
+        toNext.add(branch(GOTO));
+
+        patch(ifeq);
+        writeFallback(index);
+      } else if(direct && !((Method) property).getReturnType().isPrimitive()) {
+        // if(writeValue(writer, bean, bean.getX(), i)) { return i + 1; }
+        load(THIS);
+        load(WRITER);
+        load(BEAN);
+        callGetter((Method) property);
+        pushInt(index);
+        invoke(INVOKEVIRTUAL, BASE, "writeValue", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;I)Z", false);
+        returnIfOpened(index);
+      } else {
+        writeFallback(index);
+      }
+    }
+
+    private void writeFallback(int index) throws IOException {
+      load(THIS);
+      load(WRITER);
+      load(BEAN);
+      pushInt(index);
+      invoke(INVOKEVIRTUAL, BASE, "writeProperty", "(Ljava/lang/Object;Ljava/lang/Object;I)Z", false);
+      returnIfOpened(index);
+    }
+
+    /**
+     * Returns the index of the next property if the call before opened a container
+     */
+    private void returnIfOpened(int index) {
+      toNext.add(branch(IFEQ));
+      pushInt(index + 1);
+      u1(IRETURN);
+    }
+
+    private void callGetter(Method getter) throws IOException {
+      Class<?> declaringClass = getter.getDeclaringClass();
+      String owner = internalName(declaringClass);
+      load(BEAN);
+      u1(CHECKCAST);
+      u2(classRef(owner));
+      invoke(declaringClass.isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL, owner, getter.getName(),
+          "()" + descriptor(getter.getReturnType()), declaringClass.isInterface());
+    }
+
+    private void load(int slot) {
+      u1(ALOAD_0 + slot);
+    }
+
+    private void pushInt(int value) {
+      if(value <= 5) {
+        u1(ICONST_0 + value);
+      } else if(value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else {
+        u1(SIPUSH);
+        u2(value);
+      }
+    }
+
+    private void invoke(int opcode, String owner, String method, String descriptor, boolean isInterface) throws IOException {
+      u1(opcode);
+      u2(methodRef(owner, method, descriptor, isInterface));
+      if(opcode == INVOKEINTERFACE) {
+        u1(1);
+        u1(0);
+      }
+    }
+
+    /**
+     * Writes a branch with a placeholder offset, returning its position for {@link #patch}
+     */
+    private int branch(int opcode) {
+      int at = codeLength;
+      u1(opcode);
+      u2(0);
+      return at;
+    }
+
+    /**
+     * Points a branch at the current position, which needs a stack map frame
+     */
+    private void patch(int at) {
+      int offset = codeLength - at;
+      code[at + 1] = (byte) (offset >> 8);
+      code[at + 2] = (byte) offset;
+      frames.add(codeLength);
+    }
+
+    /**
+     * Starts the next property here, pointing the branches to it at the current position
+     */
+    private int bindNext() {
+      for(int at : toNext) {
+        int offset = codeLength - at;
+        code[at + 1] = (byte) (offset >> 8);
+        code[at + 2] = (byte) offset;
+      }
+      toNext.clear();
+      frames.add(codeLength);
+      return codeLength;
+    }
+
+    private void u1(int value) {
+      if(codeLength == code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+      code[codeLength++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    private void u4(int value) {
+      u2(value >> 16);
+      u2(value);
+    }
+
+    private void setU4(int at, int value) {
+      code[at] = (byte) (value >> 24);
+      code[at + 1] = (byte) (value >> 16);
+      code[at + 2] = (byte) (value >> 8);
+      code[at + 3] = (byte) value;
+    }
+
+    private void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName, int maxStack, int maxLocals,
+                             byte[] body, int stackMapName, List<Integer> frames) throws IOException {
+      ByteArrayOutputStream stackMap = new ByteArrayOutputStream();
+      DataOutputStream stackMapOut = new DataOutputStream(stackMap);
+      int previous = -1;
+      for(int frame : frames) {
+        int delta = frame - previous - 1;
+        if(delta < 64) {
+          stackMapOut.writeByte(delta); // same_frame
+        } else {
+          stackMapOut.writeByte(251); // same_frame_extended
+          stackMapOut.writeShort(delta);
+        }
+        previous = frame;
+      }
+
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+
+      int attributeLength = 2 + 2 + 4 + body.length + 2 + 2;
+      if(!frames.isEmpty()) {
+        attributeLength += 2 + 4 + 2 + stackMap.size();
+      }
+      out.writeShort(codeName);
+      out.writeInt(attributeLength);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(body.length);
+      out.write(body);
+      out.writeShort(0); // exception table
+      if(frames.isEmpty()) {
+        out.writeShort(0);
+      } else {
+        out.writeShort(1);
+        out.writeShort(stackMapName);
+        out.writeInt(2 + stackMap.size());
+        out.writeShort(frames.size());
+        stackMap.writeTo(out);
+      }
+    }
+
+    private int utf8(String value) throws IOException {
+      Integer index = poolIndexes.get("U" + value);
+      if(index == null) {
+        poolOut.writeByte(1);
+        poolOut.writeUTF(value);
+        index = add("U" + value);
+      }
+      return index;
+    }
+
+    private int classRef(String internalName) throws IOException {
+      Integer index = poolIndexes.get("C" + internalName);
+      if(index == null) {
+        int nameIndex = utf8(internalName);
+        poolOut.writeByte(7);
+        poolOut.writeShort(nameIndex);
+        index = add("C" + internalName);
+      }
+      return index;
+    }
+
+    private int methodRef(String owner, String method, String descriptor, boolean isInterface) throws IOException {
+      String key = "M" + owner + "." + method + descriptor;
+      Integer index = poolIndexes.get(key);
+      if(index == null) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(method);
+        int descriptorIndex = utf8(descriptor);
+        Integer nameAndType = poolIndexes.get("N" + method + descriptor);
+        if(nameAndType == null) {
+          poolOut.writeByte(12);
+          poolOut.writeShort(nameIndex);
+          poolOut.writeShort(descriptorIndex);
+          nameAndType = add("N" + method + descriptor);
+        }
+        poolOut.writeByte(isInterface ? 11 : 10);
+        poolOut.writeShort(ownerIndex);
+        poolOut.writeShort(nameAndType);
+        index = add(key);
+      }
+      return index;
+    }
+
+    private int add(String key) {
+      int index = poolSize++;
+      poolIndexes.put(key, index);
+      return index;
+    }
+  }
+}
@@ -1,8 +1,12 @@
 package com.monitorjbl.json;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
@@ -21,13 +25,20 @@ import com.monitorjbl.json.model.TestAutodetect.AutodetectGetters;
 import com.monitorjbl.json.model.TestAutodetect.AutodetectNotPresent;
 import com.monitorjbl.json.model.TestBackreferenceObject;
 import com.monitorjbl.json.model.TestBackreferenceObject.TestForwardReferenceObject;
+import com.monitorjbl.json.model.TestBrokenGetter;
 import com.monitorjbl.json.model.TestChildObject;
+import com.monitorjbl.json.model.TestContextualSerializer;
+import com.monitorjbl.json.model.TestContextualSerializer.Price;
 import com.monitorjbl.json.model.TestDuplicateKeys.ClassC;
+import com.monitorjbl.json.model.TestEnums.Renamed;
+import com.monitorjbl.json.model.TestEnums.Valued;
 import com.monitorjbl.json.model.TestInterface;
 import com.monitorjbl.json.model.TestNonNulls;
 import com.monitorjbl.json.model.TestNulls;
 import com.monitorjbl.json.model.TestObject;
 import com.monitorjbl.json.model.TestObject.TestEnum;
+import com.monitorjbl.json.model.TestPrimitiveContainers.IntList;
+import com.monitorjbl.json.model.TestPrimitiveContainers.IntObjectMap;
 import com.monitorjbl.json.model.TestSubobject;
 import com.monitorjbl.json.model.TestSuperinterface;
 import com.monitorjbl.json.model.TestSuperinterface.TestChildInterface;
@@ -37,18 +48,33 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Currency;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.OptionalInt;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static com.monitorjbl.json.Match.match;
 import static java.util.Arrays.asList;
@@ -56,7 +82,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @SuppressWarnings("unchecked")
 public class JsonViewSerializerTest {
@@ -1164,4 +1192,707 @@ public class JsonViewSerializerTest {
     assertNotNull(obj.get("widgetName"));
   }
 
+  @Test
+  public void testViewPlansAreSharedBetweenViewsOfTheSameShape() throws Exception {
+    TestObject ref1 = new TestObject();
+    ref1.setInt1(1);
+    ref1.setStr1("first");
+    TestObject ref2 = new TestObject();
+    ref2.setInt1(2);
+    ref2.setStr1("second");
+
+    Match match = match().exclude("int1");
+    CompiledView view1 = serializer.compileView(JsonView.with(ref1).onClass(TestObject.class, match));
+    CompiledView view2 = serializer.compileView(JsonView.with(ref2).onClass(TestObject.class, match().exclude("int1")));
+    assertTrue(view1 == view2);
+
+    // Changing a match after it has been used must not leak into the cached view
+    match.exclude("str1");
+    assertFalse(view1 == serializer.compileView(JsonView.with(ref1).onClass(TestObject.class, match)));
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref2)
+        .onClass(TestObject.class, match().exclude("int1"))), NonReplacableKeyMap.class);
+    assertNull(obj.get("int1"));
+    assertEquals(ref2.getStr1(), obj.get("str1"));
+  }
+
+  @Test
+  public void testSuperinterfaces_matchersOnList() throws Exception {
+    TestInterfaceObject ref1 = new TestInterfaceObject();
+    ref1.setDescription("first");
+    TestInterfaceObject ref2 = new TestInterfaceObject();
+    ref2.setDescription("second");
+
+    String serialized = sut.writeValueAsString(JsonView.with(asList(ref1, ref2))
+        .onClass(TestSuperinterface.class, match()
+            .exclude("id"))
+        .onClass(TestChildInterface.class, match()
+            .exclude("name")));
+    List<Map<String, Object>> list = sut.readValue(serialized, ArrayList.class);
+
+    assertEquals(2, list.size());
+    for(Map<String, Object> obj : list) {
+      assertFalse(obj.containsKey("id"));
+      assertFalse(obj.containsKey("name"));
+    }
+    assertEquals("first", list.get(0).get("description"));
+    assertEquals("second", list.get(1).get("description"));
+  }
+
+  @Test
+  public void testGeneratedWritersMatchRegularOutput() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setInt1(7);
+    ref.setStr1("str");
+    ref.setStr2("ignored");
+    ref.setTestEnum(TestEnum.VALUE_B);
+    ref.setIntArray(new int[]{1, 2});
+    ref.setSub(new TestSubobject("sub"));
+    ref.setListOfObjects(asList(new TestSubobject("a"), new TestSubobject("b")));
+    JsonView<TestObject> view = JsonView.with(ref)
+        .onClass(TestObject.class, match().exclude("str2"))
+        .onClass(TestSubobject.class, match().exclude("otherVal"));
+
+    String regular = sut.writeValueAsString(view);
+
+    JsonViewSerializer generating = new JsonViewSerializer();
+    generating.setGeneratedWriters(true);
+    generating.setGeneratedWriterThreshold(1);
+    ObjectMapper generatingMapper = new ObjectMapper().registerModule(new JsonViewModule(generating));
+    assertEquals(regular, generatingMapper.writeValueAsString(view));
+    assertEquals(regular, generatingMapper.writeValueAsString(view));
+
+    // Primitives fall back to the regular path once a custom serializer applies to them
+    generating.registerCustomSerializer(Integer.class, new JsonSerializer<Integer>() {
+      @Override
+      public void serialize(Integer value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeString("#" + value);
+      }
+    });
+    Map<String, Object> obj = generatingMapper.readValue(generatingMapper.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals("#7", obj.get("int1"));
+  }
+
+  @Test
+  public void testPlansArePromotedAndDemotedByUse() throws Exception {
+    serializer.setPlanThreshold(3);
+    serializer.setTierSweepInterval(10);
+    JsonView<TestObject> view = JsonView.with(new TestObject()).onClass(TestObject.class, match().exclude("str2"));
+    CompiledView compiled = serializer.compileView(view);
+
+    sut.writeValueAsString(view);
+    sut.writeValueAsString(view);
+    assertEquals(0, compiled.cachedPlanCount(TestObject.class));
+    sut.writeValueAsString(view);
+    assertEquals(1, compiled.cachedPlanCount(TestObject.class));
+
+    // Hot pairs survive sweeps, cold ones are dropped
+    JsonView<TestSubobject> other = JsonView.with(new TestSubobject("sub")).onClass(TestObject.class, match().exclude("str2"));
+    for(int i = 0; i < 30; i++) {
+      sut.writeValueAsString(other);
+    }
+    assertEquals(0, compiled.cachedPlanCount(TestObject.class));
+    assertEquals(1, compiled.cachedPlanCount(TestSubobject.class));
+    assertEquals(compiled, serializer.compileView(other));
+  }
+
+  @Test
+  public void testRepromotedPlansReuseTheirGeneratedClass() throws Exception {
+    ViewPlan plan = new ViewPlan(match(), new ArrayList<>());
+    plan.promote(TestObject.class);
+    Class<?> generated = plan.generatedWriter().getClass();
+
+    plan.demote();
+    assertNull(plan.generatedWriter());
+    plan.promote(TestObject.class);
+    assertSame(generated, plan.generatedWriter().getClass());
+  }
+
+  @Test
+  public void testDeeplyNestedObjectsRestoreStateOnTheWayOut() throws Exception {
+    TestSubobject deepest = new TestSubobject("0");
+    for(int i = 1; i < 40; i++) {
+      deepest = new TestSubobject(String.valueOf(i), deepest);
+    }
+    TestObject ref = new TestObject();
+    ref.setSub(deepest);
+    ref.setListOfObjects(asList(new TestSubobject("a"), new TestSubobject("b")));
+
+    String serialized = sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match().exclude("*").include("sub", "listOfObjects"))
+        .onClass(TestSubobject.class, match().exclude("otherVal")));
+    Map<String, Object> obj = sut.readValue(serialized, NonReplacableKeyMap.class);
+
+    Map<String, Object> sub = (Map<String, Object>) obj.get("sub");
+    for(int i = 39; i > 0; i--) {
+      assertEquals(String.valueOf(i), sub.get("val"));
+      assertFalse(sub.containsKey("otherVal"));
+      sub = (Map<String, Object>) sub.get("sub");
+    }
+    assertEquals("0", sub.get("val"));
+
+    // The list comes after the nested chain, so it's written with the state restored
+    List<Map<String, Object>> list = (List<Map<String, Object>>) obj.get("listOfObjects");
+    assertEquals("a", list.get(0).get("val"));
+    assertFalse(list.get(0).containsKey("otherVal"));
+    assertNull(obj.get("str1"));
+  }
+
+  @Test
+  public void testVeryDeepObjectGraphsDoNotOverflowTheStack() throws Exception {
+    TestSubobject deepest = new TestSubobject("0");
+    for(int i = 1; i < 20_000; i++) {
+      deepest = new TestSubobject(String.valueOf(i), deepest);
+    }
+
+    JsonView<TestSubobject> view = JsonView.with(deepest).onClass(TestSubobject.class, match().exclude("otherVal"));
+    String serialized = sut.writeValueAsString(view);
+    // Only the top of the graph is interned in the view's path tree
+    assertTrue(serializer.compileView(view).root.treeSize() <= 3 * PathNode.MAX_DEPTH);
+
+    StringBuilder expected = new StringBuilder();
+    for(int i = 19_999; i >= 0; i--) {
+      expected.append("{\"val\":\"").append(i).append("\",\"sub\":");
+    }
+    expected.append("null");
+    for(int i = 0; i < 20_000; i++) {
+      expected.append('}');
+    }
+    assertEquals(expected.toString(), serialized);
+  }
+
+  @Test
+  public void testResumableSerializationMatchesRegularOutput() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str");
+    ref.setSub(new TestSubobject("sub", new TestSubobject("subsub")));
+    ref.setListOfObjects(asList(new TestSubobject("a"), new TestSubobject("b")));
+    ref.setMapOfObjects(ImmutableMap.of("key", new TestSubobject("c")));
+    JsonView<TestObject> view = JsonView.with(ref).onClass(TestSubobject.class, match().exclude("otherVal"));
+
+    StringWriter out = new StringWriter();
+    JsonGenerator jgen = sut.getFactory().createGenerator(out);
+    ResumableSerialization serialization = serializer.startSerialization(view, jgen, sut.getSerializerProviderInstance());
+    int slices = 0;
+    while(!serialization.resume(2)) {
+      slices++;
+    }
+    jgen.flush();
+
+    assertTrue(serialization.isDone());
+    assertTrue(slices > 5);
+    assertEquals(sut.writeValueAsString(view), out.toString());
+  }
+
+  @Test
+  public void testJsonSerializeAnnotationIsContextualizedOnce() throws Exception {
+    List<Price> prices = new ArrayList<>();
+    for(int i = 0; i < 100; i++) {
+      prices.add(new Price(new CustomType((long) i, "p" + i)));
+    }
+    JsonView<List<Price>> view = JsonView.with(prices).onClass(Price.class, match().exclude("unknown"));
+    // Without cached plans, every row looks up its serializer
+    serializer.setPlanThreshold(Integer.MAX_VALUE);
+
+    TestContextualSerializer.instances.set(0);
+    List<Map<String, Object>> list = sut.readValue(sut.writeValueAsString(view), List.class);
+    sut.writeValueAsString(view);
+
+    assertEquals("amount:p0", list.get(0).get("amount"));
+    assertEquals("amount:p99", list.get(99).get("amount"));
+    // One instance to contextualize, and the contextual one
+    assertEquals(2, TestContextualSerializer.instances.get());
+  }
+
+  @Test
+  public void testSerializationOptions_includeNonEmptyAndNonDefault() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("");
+    ref.setStr2("str2");
+    ref.setList(new ArrayList<>());
+    ref.setIntArray(new int[0]);
+    JsonView<TestObject> view = JsonView.with(ref).onClass(TestObject.class, match().exclude("*").include("str1", "str2", "int1", "list", "intArray"));
+
+    sut.setSerializationInclusion(Include.NON_EMPTY);
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals(ImmutableMap.of("str2", "str2", "int1", 0), obj);
+
+    serializer = new JsonViewSerializer();
+    sut = new ObjectMapper().registerModule(new JsonViewModule(serializer)).setSerializationInclusion(Include.NON_DEFAULT);
+    obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals(ImmutableMap.of("str2", "str2"), obj);
+  }
+
+  @Test
+  public void testCustomSerializersApplyToSubclasses() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setInt1(7);
+    ref.setBigDecimal(new BigDecimal("1.5"));
+    ref.setStr1("str");
+    JsonView<TestObject> view = JsonView.with(ref).onClass(TestObject.class, match().exclude("*").include("int1", "bigDecimal", "str1"));
+    assertEquals(7, sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class).get("int1"));
+
+    serializer.registerCustomSerializer(Number.class, new JsonSerializer<Number>() {
+      @Override
+      public void serialize(Number value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeString("#" + value);
+      }
+    });
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals("#7", obj.get("int1"));
+    assertEquals("#1.5", obj.get("bigDecimal"));
+    assertEquals("str", obj.get("str1"));
+
+    serializer.unregisterCustomSerializer(Number.class);
+    assertEquals(7, sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class).get("int1"));
+  }
+
+  @Test
+  public void testLeafTypesAreWrittenLikeJackson() throws Exception {
+    Map<String, Object> values = ImmutableMap.<String, Object>builder()
+        .put("bigInteger", new BigInteger("12345678901234567890"))
+        .put("atomicLong", new AtomicLong(5))
+        .put("duration", Duration.ofSeconds(90))
+        .put("optionalInt", OptionalInt.of(3))
+        .put("locale", Locale.CANADA_FRENCH)
+        .put("currency", Currency.getInstance("EUR"))
+        .build();
+
+    ObjectMapper plain = new ObjectMapper().registerModule(new Jdk8Module()).registerModule(new JavaTimeModule());
+    assertEquals(plain.writeValueAsString(values), sut.writeValueAsString(JsonView.with(values)));
+  }
+
+  @Test
+  public void testEnumsHonorJsonPropertyAndJsonValue() throws Exception {
+    List<Object> values = asList(Renamed.FIRST, Renamed.SECOND, Valued.HIGH, TestEnum.VALUE_A);
+    assertEquals("[\"first\",\"SECOND\",10,\"VALUE_A\"]", sut.writeValueAsString(JsonView.with(values)));
+  }
+
+  @Test
+  public void testUnfilteredSubtreesAreDelegatedToJackson() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str1");
+    ref.setStr2("str2");
+    ref.setSub(new TestSubobject("sub"));
+    ref.setListOfObjects(asList(new TestSubobject("a")));
+    JsonView<TestObject> view = JsonView.with(ref).onClass(TestObject.class, match().exclude("str2"));
+
+    // Only Jackson knows about this serializer, so it shows which objects were delegated
+    SimpleModule jacksonOnly = new SimpleModule().addSerializer(TestSubobject.class, new JsonSerializer<TestSubobject>() {
+      @Override
+      public void serialize(TestSubobject value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeString("jackson:" + value.getVal());
+      }
+    });
+    sut = new ObjectMapper().registerModule(new JsonViewModule(serializer)).registerModule(jacksonOnly);
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals("sub", ((Map<String, Object>) obj.get("sub")).get("val"));
+
+    serializer.setDelegateUnfilteredSubtrees(true);
+    obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals("str1", obj.get("str1"));
+    assertFalse(obj.containsKey("str2"));
+    assertEquals("jackson:sub", obj.get("sub"));
+    assertEquals(asList("jackson:a"), obj.get("listOfObjects"));
+
+    // A match that reaches into the subtree keeps it on the regular path
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref).onClass(TestObject.class, match().exclude("sub.otherVal"))), NonReplacableKeyMap.class);
+    assertEquals("sub", ((Map<String, Object>) obj.get("sub")).get("val"));
+    assertEquals(asList("jackson:a"), obj.get("listOfObjects"));
+  }
+
+  @Test
+  public void testSimpleViewsAreTranslatedToJacksonFilters() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str1");
+    ref.setStr2("str2");
+    ref.setJsonProp("jsonProp");
+    ref.setSub(new TestSubobject("sub"));
+    JsonView<TestObject> view = JsonView.with(ref).onClass(TestObject.class, match().exclude("str2", "int1", "jsonProp"));
+
+    // Only Jackson knows about this serializer, so it shows which views were translated
+    SimpleModule jacksonOnly = new SimpleModule().addSerializer(TestSubobject.class, new JsonSerializer<TestSubobject>() {
+      @Override
+      public void serialize(TestSubobject value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeString("jackson:" + value.getVal());
+      }
+    });
+    serializer.setTranslateSimpleViews(true);
+    sut = new ObjectMapper().registerModule(new JsonViewModule(serializer)).registerModule(jacksonOnly);
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertEquals("str1", obj.get("str1"));
+    assertFalse(obj.containsKey("str2"));
+    assertFalse(obj.containsKey("int1"));
+    assertFalse(obj.containsKey("totallyJsonProp"));
+    assertEquals("jackson:sub", obj.get("sub"));
+
+    // Nested paths can't be expressed as filters, so the view is written as usual
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref).onClass(TestObject.class, match().exclude("sub.otherVal"))), NonReplacableKeyMap.class);
+    assertEquals("sub", ((Map<String, Object>) obj.get("sub")).get("val"));
+  }
+
+  @Test
+  public void testStreamsAreWrittenLazilyAndClosed() throws Exception {
+    TestSubobject first = new TestSubobject("a");
+    first.setOtherVal("b");
+    AtomicBoolean closed = new AtomicBoolean();
+    Stream<TestSubobject> stream = Stream.of(first, new TestSubobject("c")).onClose(() -> closed.set(true));
+    List<Map<String, Object>> list = sut.readValue(sut.writeValueAsString(JsonView.with(stream)
+        .onClass(TestSubobject.class, match().exclude("otherVal"))), List.class);
+    assertEquals(2, list.size());
+    assertEquals("a", list.get(0).get("val"));
+    assertFalse(list.get(0).containsKey("otherVal"));
+    assertTrue(closed.get());
+
+    list = sut.readValue(sut.writeValueAsString(JsonView.with(asList(new TestSubobject("a")).iterator())), List.class);
+    assertEquals("a", list.get(0).get("val"));
+    list = sut.readValue(sut.writeValueAsString(JsonView.with(asList(new TestSubobject("a")).spliterator())), List.class);
+    assertEquals("a", list.get(0).get("val"));
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ImmutableMap.of("ints", IntStream.range(0, 3)))), NonReplacableKeyMap.class);
+    assertEquals(asList(0, 1, 2), obj.get("ints"));
+
+    // Streams are closed when writing fails too
+    AtomicBoolean failedClosed = new AtomicBoolean();
+    Stream<Object> failing = Stream.of((Object) "a").map(s -> { throw new IllegalStateException("failed"); }).onClose(() -> failedClosed.set(true));
+    try {
+      sut.writeValueAsString(JsonView.with(failing));
+      fail();
+    } catch(Exception e) {
+      assertTrue(failedClosed.get());
+    }
+  }
+
+  @Test
+  public void testCollectionsAndIterablesAreWrittenAsArrays() throws Exception {
+    Map<String, TestSubobject> byName = new LinkedHashMap<>();
+    byName.put("a", new TestSubobject("a"));
+    byName.put("b", new TestSubobject("b"));
+    Iterable<String> iterable = () -> asList("x", "y").iterator();
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("values", byName.values());
+    value.put("deque", new ArrayDeque<>(asList(1, 2, 3)));
+    value.put("linked", new LinkedList<>(asList(4, 5)));
+    value.put("iterable", iterable);
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(value)
+        .onClass(TestSubobject.class, match().exclude("otherVal"))), NonReplacableKeyMap.class);
+    List<Map<String, Object>> values = (List<Map<String, Object>>) obj.get("values");
+    assertEquals(2, values.size());
+    assertEquals("b", values.get(1).get("val"));
+    assertFalse(values.get(1).containsKey("otherVal"));
+    assertEquals(asList(1, 2, 3), obj.get("deque"));
+    assertEquals(asList(4, 5), obj.get("linked"));
+    assertEquals(asList("x", "y"), obj.get("iterable"));
+  }
+
+  @Test
+  public void testContainerAdaptersWritePrimitivesDirectly() throws Exception {
+    serializer.registerContainerAdapter(IntList.class, new ContainerAdapter<IntList>() {
+      @Override
+      public int size(IntList container) {
+        return container.size();
+      }
+
+      @Override
+      public void write(IntList container, ContainerWriter writer) throws IOException {
+        for(int i = 0; i < container.size(); i++) {
+          writer.generator().writeNumber(container.getInt(i));
+        }
+      }
+    });
+    serializer.registerContainerAdapter(IntObjectMap.class, new ContainerAdapter<IntObjectMap>() {
+      @Override
+      public boolean isMap() {
+        return true;
+      }
+
+      @Override
+      public void write(IntObjectMap container, ContainerWriter writer) throws IOException {
+        for(int i = 0; i < container.size(); i++) {
+          writer.writeEntry(container.keyAt(i), container.valueAt(i));
+        }
+      }
+    });
+
+    TestSubobject sub = new TestSubobject("a");
+    sub.setOtherVal("b");
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("ints", new IntList(1, 2, 3));
+    value.put("byId", new IntObjectMap<TestSubobject>().put(7, sub));
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(value)
+        .onClass(TestSubobject.class, match().exclude("otherVal"))), NonReplacableKeyMap.class);
+    assertEquals(asList(1, 2, 3), obj.get("ints"));
+    Map<String, Object> byId = (Map<String, Object>) obj.get("byId");
+    assertEquals("a", ((Map<String, Object>) byId.get("7")).get("val"));
+    assertFalse(((Map<String, Object>) byId.get("7")).containsKey("otherVal"));
+  }
+
+  @Test
+  public void testMapKeysAreWrittenWithJacksonKeySerializers() throws Exception {
+    Map<Object, String> byEnum = new LinkedHashMap<>();
+    byEnum.put(Renamed.FIRST, "a");
+    byEnum.put(Renamed.SECOND, "b");
+    Map<Object, String> byDate = new TreeMap<>();
+    byDate.put(new Date(0), "epoch");
+    byDate.put(new Date(86_400_000), "day");
+    Map<Object, String> byNumber = new LinkedHashMap<>();
+    byNumber.put(1, "one");
+    byNumber.put(2.5, "two and a half");
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("byEnum", byEnum);
+    value.put("byDate", byDate);
+    value.put("byNumber", byNumber);
+
+    assertEquals(sut.writeValueAsString(value), sut.writeValueAsString(JsonView.with(value)));
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(value)), NonReplacableKeyMap.class);
+    assertEquals("a", ((Map<String, Object>) obj.get("byEnum")).get("first"));
+    assertEquals("two and a half", ((Map<String, Object>) obj.get("byNumber")).get("2.5"));
+  }
+
+  @Test
+  public void testMapKeysAreMatchedByTheNameTheyAreWrittenAs() throws Exception {
+    Map<Object, String> byEnum = new LinkedHashMap<>();
+    byEnum.put(Renamed.FIRST, "a");
+    byEnum.put(Renamed.SECOND, "b");
+    Map<Object, String> byDate = new TreeMap<>();
+    byDate.put(new Date(0), "epoch");
+    byDate.put(new Date(86_400_000), "day");
+    TestObject ref = new TestObject();
+    ref.setMapOfStrings((Map) byEnum);
+    ref.setMapWithIntKeys((Map) byDate);
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match().exclude("mapOfStrings.first", "mapWithIntKeys.1970-01-01*"))), NonReplacableKeyMap.class);
+    assertEquals(ImmutableMap.of("SECOND", "b"), obj.get("mapOfStrings"));
+    assertEquals(ImmutableMap.of("1970-01-02T00:00:00.000+0000", "day"), obj.get("mapWithIntKeys"));
+  }
+
+  @Test
+  public void testMapKeysAreMatchedAsPathSegments() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setMapOfStrings(ImmutableMap.of("cpu_user", "1", "cpu_sys", "2", "mem", "3"));
+    TestSubobject first = new TestSubobject("a");
+    first.setOtherVal("b");
+    TestSubobject second = new TestSubobject("c");
+    second.setOtherVal("d");
+    ref.setMapOfObjects(ImmutableMap.of("key1", first, "key2", second));
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match()
+            .exclude("mapOfStrings.cpu_*")
+            .exclude("mapOfObjects.key1.otherVal"))), NonReplacableKeyMap.class);
+    assertEquals(ImmutableMap.of("mem", "3"), obj.get("mapOfStrings"));
+    Map<String, Map<String, Object>> objects = (Map<String, Map<String, Object>>) obj.get("mapOfObjects");
+    assertEquals("a", objects.get("key1").get("val"));
+    assertFalse(objects.get("key1").containsKey("otherVal"));
+    assertEquals("d", objects.get("key2").get("otherVal"));
+
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match()
+            .exclude("mapOfStrings.*")
+            .include("mapOfStrings.mem"))), NonReplacableKeyMap.class);
+    assertEquals(ImmutableMap.of("mem", "3"), obj.get("mapOfStrings"));
+  }
+
+  @Test
+  public void testInclusionCanBeSetPerViewAndPerMatch() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("");
+    ref.setList(new ArrayList<>());
+    ref.setSub(new TestSubobject("sub"));
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)), NonReplacableKeyMap.class);
+    assertTrue(obj.containsKey("targetObject"));
+    assertTrue(obj.containsKey("list"));
+
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref).withInclusion(Include.NON_EMPTY)), NonReplacableKeyMap.class);
+    assertFalse(obj.containsKey("str1"));
+    assertFalse(obj.containsKey("targetObject"));
+    assertFalse(obj.containsKey("list"));
+    assertEquals(0, obj.get("int1"));
+    assertFalse(((Map<String, Object>) obj.get("sub")).containsKey("otherVal"));
+
+    // A match's policy applies to its class, and to what it's inherited by
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match().withInclusion(Include.NON_DEFAULT))), NonReplacableKeyMap.class);
+    assertFalse(obj.containsKey("int1"));
+    assertFalse(obj.containsKey("targetObject"));
+    assertFalse(((Map<String, Object>) obj.get("sub")).containsKey("otherVal"));
+
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .withInclusion(Include.NON_NULL)
+        .onClass(TestSubobject.class, match().withInclusion(Include.ALWAYS))), NonReplacableKeyMap.class);
+    assertFalse(obj.containsKey("targetObject"));
+    assertTrue(((Map<String, Object>) obj.get("sub")).containsKey("otherVal"));
+  }
+
+  @Test
+  public void testCompiledViewsAreRememberedUntilTheViewChanges() throws Exception {
+    Match match = match().exclude("int1");
+    JsonView<TestObject> view = JsonView.with(new TestObject()).onClass(TestObject.class, match);
+    CompiledView compiled = serializer.compileView(view);
+    CompiledView.Stamp stamp = view.compiled;
+    assertTrue(compiled == serializer.compileView(view));
+    assertTrue(stamp == view.compiled);
+
+    match.exclude("str1");
+    CompiledView changed = serializer.compileView(view);
+    assertFalse(compiled == changed);
+    assertEquals(1, changed.getMatch(TestObject.class).getExcludeMatcher().matches("str1", false));
+
+    view.onClass(TestSubobject.class, match().exclude("val"));
+    assertNotNull(serializer.compileView(view).getMatch(TestSubobject.class));
+
+    serializer.setDefaultMatcherBehavior(MatcherBehavior.PATH_FIRST);
+    assertEquals(MatcherBehavior.PATH_FIRST, serializer.compileView(view).matcherBehavior);
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(view), NonReplacableKeyMap.class);
+    assertFalse(obj.containsKey("str1"));
+  }
+
+  @Test
+  public void testSeveralSimpleViewsAreTranslatedThroughOneMapper() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str1");
+    ref.setStr2("str2");
+    ref.setInt1(1);
+    serializer.setTranslateSimpleViews(true);
+    sut = new ObjectMapper().registerModule(new JsonViewModule(serializer));
+
+    String[] excluded = {"str1", "str2", "int1", "date", "list"};
+    for(int round = 0; round < 2; round++) {
+      for(String field : excluded) {
+        Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+            .onClass(TestObject.class, match().exclude(field))), NonReplacableKeyMap.class);
+        assertFalse(obj.containsKey(field));
+        for(String other : excluded) {
+          if(!other.equals(field)) {
+            assertTrue(field + " left out " + other, obj.containsKey(other));
+          }
+        }
+      }
+    }
+
+    // Enough views and mappers for the caches behind them to grow while writers are being created
+    for(int i = 0; i < 200; i++) {
+      ObjectMapper mapper = i % 2 == 0 ? sut : new ObjectMapper().registerModule(new JsonViewModule(serializer));
+      Map<String, Object> obj = sut.readValue(mapper.writeValueAsString(JsonView.with(ref)
+          .onClass(TestObject.class, match().exclude("str1", "missing" + i))), NonReplacableKeyMap.class);
+      assertFalse(obj.containsKey("str1"));
+      assertEquals("str2", obj.get("str2"));
+    }
+  }
+
+  @Test
+  public void testDelegatedSubtreesKeepTheReferringFieldsIgnores() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str1");
+    TestSubobject sub = new TestSubobject("secret");
+    sub.setOtherVal("otherVal");
+    ref.setSubWithIgnores(sub);
+    serializer.setDelegateUnfilteredSubtrees(true);
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref).onClass(TestObject.class, match().exclude("str1"))), NonReplacableKeyMap.class);
+    assertFalse(obj.containsKey("str1"));
+    Map<String, Object> written = (Map<String, Object>) obj.get("subWithIgnores");
+    assertFalse(written.containsKey("val"));
+    assertEquals("otherVal", written.get("otherVal"));
+  }
+
+  @Test
+  public void testInclusionIsKeptWhenSeveralClassMatchesApply() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str1");
+    ref.setDate(new Date());
+
+    Map<String, Object> obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match().withInclusion(Include.NON_NULL))
+        .onClass(TestInterface.class, match().exclude("date"))), NonReplacableKeyMap.class);
+    assertEquals("str1", obj.get("str1"));
+    assertFalse(obj.containsKey("date"));
+    assertFalse(obj.containsKey("targetObject"));
+
+    // The class's own inclusion wins over its interface's
+    obj = sut.readValue(sut.writeValueAsString(JsonView.with(ref)
+        .onClass(TestObject.class, match().withInclusion(Include.NON_NULL))
+        .onClass(TestInterface.class, match().exclude("date").withInclusion(Include.ALWAYS))), NonReplacableKeyMap.class);
+    assertFalse(obj.containsKey("date"));
+    assertFalse(obj.containsKey("targetObject"));
+  }
+
+  @Test
+  public void testClosingAnUnfinishedSerializationClosesItsStreams() throws Exception {
+    AtomicBoolean closed = new AtomicBoolean();
+    Stream<TestSubobject> stream = Stream.of(new TestSubobject("a"), new TestSubobject("b"), new TestSubobject("c")).onClose(() -> closed.set(true));
+    JsonGenerator jgen = sut.getFactory().createGenerator(new StringWriter());
+
+    ResumableSerialization serialization = serializer.startSerialization(JsonView.with(ImmutableMap.of("subs", stream)), jgen, sut.getSerializerProviderInstance());
+    assertFalse(serialization.resume(2));
+    assertFalse(closed.get());
+
+    serialization.close();
+    assertTrue(closed.get());
+    assertFalse(serialization.isDone());
+    try {
+      serialization.resume(1);
+      fail();
+    } catch(IllegalStateException e) {
+      // Expected
+    }
+    serialization.close();
+  }
+
+  @Test
+  public void testFailedSerializationCantBeResumed() throws Exception {
+    List<Object> values = asList(new TestSubobject("a"), new TestBrokenGetter("b"), new TestSubobject("c"));
+    JsonGenerator jgen = sut.getFactory().createGenerator(new StringWriter());
+    ResumableSerialization serialization = serializer.startSerialization(JsonView.with(values), jgen, sut.getSerializerProviderInstance());
+
+    try {
+      while(!serialization.resume(1)) {
+      }
+      fail();
+    } catch(Exception e) {
+      // The getter's failure
+    }
+    assertFalse(serialization.isDone());
+    try {
+      serialization.resume(1);
+      fail();
+    } catch(IllegalStateException e) {
+      assertEquals("Serialization failed and can't be resumed", e.getMessage());
+    }
+    serialization.close();
+  }
+
+  @Test
+  public void testTranslatedViewsKeepTheConfigurationOfTheCall() throws Exception {
+    TestObject ref = new TestObject();
+    ref.setStr1("str1");
+    ref.setStr2("str2");
+    ref.setDate(new Date(0));
+    JsonView<TestObject> view = JsonView.with(ref).onClass(TestObject.class, match().exclude("str2"));
+    serializer.setTranslateSimpleViews(true);
+
+    // Features set for the call apply to views nested in the value
+    List<Map<String, Object>> list = sut.readValue(sut.writer().without(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+        .writeValueAsString(asList(view, view)), List.class);
+    assertEquals(2, list.size());
+    assertEquals("1970-01-01T00:00:00.000+0000", list.get(1).get("date"));
+    assertEquals("str1", list.get(1).get("str1"));
+    assertFalse(list.get(1).containsKey("str2"));
+
+    // And views aren't flushed halfway through the enclosing document
+    AtomicInteger flushes = new AtomicInteger();
+    StringWriter out = new StringWriter() {
+      @Override
+      public void flush() {
+        flushes.incrementAndGet();
+      }
+    };
+    sut.writer().with(SerializationFeature.FLUSH_AFTER_WRITE_VALUE).writeValue(sut.getFactory().createGenerator(out), asList(view, view));
+    assertEquals(1, flushes.get());
+  }
 }
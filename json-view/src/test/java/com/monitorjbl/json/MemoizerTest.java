@@ -0,0 +1,109 @@
+package com.monitorjbl.json;
+
+import com.monitorjbl.json.Memoizer.FunctionCache;
+import com.monitorjbl.json.Memoizer.MonoArg;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemoizerTest {
+
+  @Test
+  public void testSizeIsBounded() {
+    Memoizer memoizer = new Memoizer(100);
+    for(int i = 0; i < 1000; i++) {
+      int value = i;
+      memoizer.computeIfAbsent(FunctionCache.VIEWS, new MonoArg(i), () -> value);
+    }
+
+    CacheStats stats = memoizer.stats(FunctionCache.VIEWS);
+    assertEquals(100, stats.getSize());
+    assertEquals(900, stats.getEvictionCount());
+    assertEquals(1000, stats.getMissCount());
+    assertEquals(0, stats.getHitCount());
+  }
+
+  @Test
+  public void testFrequentlyUsedEntriesSurviveAScan() {
+    Memoizer memoizer = new Memoizer(100);
+    for(int round = 0; round < 5; round++) {
+      for(int i = 0; i < 50; i++) {
+        memoizer.computeIfAbsent(FunctionCache.VIEWS, new MonoArg("hot" + i), () -> "hot");
+      }
+    }
+    for(int i = 0; i < 10_000; i++) {
+      memoizer.computeIfAbsent(FunctionCache.VIEWS, new MonoArg("cold" + i), () -> "cold");
+    }
+
+    long missesBefore = memoizer.stats(FunctionCache.VIEWS).getMissCount();
+    for(int i = 0; i < 50; i++) {
+      memoizer.computeIfAbsent(FunctionCache.VIEWS, new MonoArg("hot" + i), () -> "hot");
+    }
+    long missesAfter = memoizer.stats(FunctionCache.VIEWS).getMissCount();
+    assertTrue("hot entries were evicted: " + (missesAfter - missesBefore), missesAfter - missesBefore < 5);
+  }
+
+  @Test
+  public void testValuesAreComputedOnce() throws Exception {
+    Memoizer memoizer = new Memoizer(100);
+    AtomicInteger computations = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      Future<?>[] futures = new Future[8];
+      for(int i = 0; i < futures.length; i++) {
+        futures[i] = executor.submit(() -> {
+          start.await();
+          return memoizer.computeIfAbsent(FunctionCache.ANNOTATIONS, new MonoArg("key"), () -> {
+            computations.incrementAndGet();
+            try {
+              Thread.sleep(50);
+            } catch(InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            return "value";
+          });
+        });
+      }
+      start.countDown();
+      for(Future<?> future : futures) {
+        assertEquals("value", future.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(1, computations.get());
+    CacheStats stats = memoizer.stats(FunctionCache.ANNOTATIONS);
+    assertEquals(1, stats.getMissCount());
+    assertEquals(7, stats.getHitCount());
+  }
+
+  @Test
+  public void testCachesAreSizedSeparately() {
+    Memoizer memoizer = new Memoizer(100);
+    memoizer.setMaxSize(FunctionCache.ANNOTATIONS, 10);
+    for(int i = 0; i < 50; i++) {
+      int value = i;
+      memoizer.computeIfAbsent(FunctionCache.ANNOTATIONS, new MonoArg(i), () -> value);
+      memoizer.computeIfAbsent(FunctionCache.VIEWS, new MonoArg(i), () -> value);
+    }
+
+    assertEquals(10, memoizer.stats(FunctionCache.ANNOTATIONS).getSize());
+    assertEquals(10, memoizer.stats(FunctionCache.ANNOTATIONS).getMaxSize());
+    assertEquals(50, memoizer.stats(FunctionCache.VIEWS).getSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownCacheNameIsRejected() {
+    new JsonViewSerializer().setCacheSize("NOT_A_CACHE", 10);
+  }
+}
@@ -0,0 +1,111 @@
+package com.monitorjbl.json;
+
+import org.junit.Test;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PathMatcherTest {
+
+  @Test
+  public void testExactMatchWinsOverWildcard() {
+    PathMatcher matcher = PathMatcher.compile(newHashSet("sub.*", "sub.val", "*"));
+    assertEquals(1, matcher.matches("sub.val", false));
+    assertEquals(0, matcher.matches("sub.otherVal", false));
+    assertEquals(0, matcher.matches("int1", false));
+  }
+
+  @Test
+  public void testWildcardSpansSegments() {
+    PathMatcher matcher = PathMatcher.compile(newHashSet("field*", "*.green"));
+    assertEquals(0, matcher.matches("field1.sub", false));
+    assertEquals(0, matcher.matches("a.b.green", false));
+    assertEquals(-1, matcher.matches("a.b.blue", false));
+  }
+
+  @Test
+  public void testPrefixMatch() {
+    PathMatcher matcher = PathMatcher.compile(newHashSet("sub.otherVal", "list.*.val"));
+    assertEquals(1, matcher.matches("sub", true));
+    assertEquals(-1, matcher.matches("sub", false));
+    assertEquals(0, matcher.matches("list", true));
+    assertEquals(-1, matcher.matches("su", true));
+  }
+
+  @Test
+  public void testSegmentWalkMatchesWholePath() {
+    PathMatcher matcher = PathMatcher.compile(newHashSet("listOfObjects.sub.val", "*.id"));
+    PathMatcher.State state = matcher.root().next("listOfObjects").next("sub");
+    assertEquals(1, state.prefixMatch);
+    assertEquals(1, state.next("val").match);
+    assertEquals(0, state.next("id").match);
+    assertSame(state, matcher.root().next("listOfObjects.sub"));
+  }
+
+  @Test
+  public void testDeadStates() {
+    PathMatcher matcher = PathMatcher.compile(newHashSet("sub.val"));
+    assertTrue(matcher.root().next("other").isDead());
+    assertFalse(matcher.root().next("sub").isDead());
+    assertTrue(PathMatcher.compile(newHashSet()).root().isDead());
+  }
+
+  @Test
+  public void testWalkByPathNode() {
+    PathNode root = PathNode.root();
+    PathNode node = root.child("listOfObjects").child("sub");
+    assertSame(node, root.child("listOfObjects").child("sub"));
+    assertEquals("listOfObjects.sub", node.path());
+
+    PathMatcher matcher = PathMatcher.compile(newHashSet("listOfObjects.sub.val"));
+    assertSame(matcher.root().next("listOfObjects.sub"), matcher.state(node));
+    assertEquals(1, matcher.state(node.child("val")).match);
+    assertSame(matcher.root(), matcher.state(root));
+  }
+
+  @Test
+  public void testWalkResumesFromTheNearestWalkedNode() {
+    PathNode root = PathNode.root();
+    PathNode parent = root.child("a").child("b");
+    PathNode deep = parent.child("c").child("d");
+    PathMatcher matcher = PathMatcher.compile(newHashSet("a.b.c.*"));
+
+    assertSame(matcher.root().next("a.b"), matcher.state(parent));
+    assertSame(matcher.root().next("a.b.c.d"), matcher.state(deep));
+    assertSame(matcher.state(deep), matcher.state(deep));
+    assertEquals(0, matcher.state(deep).match);
+  }
+
+  @Test
+  public void testDeepPathsStopInterning() {
+    PathNode node = PathNode.root();
+    for(int i = 0; i < PathNode.MAX_DEPTH + 10; i++) {
+      node = node.child("sub");
+      assertEquals(i < PathNode.MAX_DEPTH, node.isInterned());
+    }
+
+    // States below the limit are remembered on the nodes themselves
+    PathMatcher matcher = PathMatcher.compile(newHashSet("*.val"));
+    assertSame(matcher.state(node), matcher.state(node));
+    assertEquals(0, matcher.state(node).next("val").match);
+    assertEquals(-1, matcher.state(node.child("other")).match);
+  }
+
+  @Test
+  public void testTreeSizeIsBounded() {
+    PathNode root = PathNode.root();
+    PathNode parent = root;
+    for(int i = 0; i <= PathNode.MAX_NODES / PathNode.MAX_CHILDREN; i++) {
+      parent = root.child("p" + i);
+      for(int j = 0; j < PathNode.MAX_CHILDREN; j++) {
+        parent.child("c" + j);
+      }
+    }
+    assertEquals(PathNode.MAX_NODES, root.treeSize());
+    assertFalse(parent.child("c0").isInterned());
+    assertFalse(root.child("other").isInterned());
+  }
+}
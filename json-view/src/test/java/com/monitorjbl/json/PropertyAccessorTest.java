@@ -0,0 +1,125 @@
+package com.monitorjbl.json;
+
+import com.monitorjbl.json.PropertyAccessor.Kind;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PropertyAccessorTest {
+
+  @Test
+  public void testPublicGetters() throws Exception {
+    Bean bean = new Bean();
+    PropertyAccessor count = PropertyAccessor.of(Bean.class.getMethod("getCount"));
+    PropertyAccessor total = PropertyAccessor.of(Bean.class.getMethod("getTotal"));
+    PropertyAccessor ratio = PropertyAccessor.of(Bean.class.getMethod("getRatio"));
+    PropertyAccessor name = PropertyAccessor.of(Bean.class.getMethod("getName"));
+    PropertyAccessor flag = PropertyAccessor.of(Bean.class.getMethod("getFlag"));
+
+    assertEquals(Kind.INT, count.kind);
+    assertEquals(7, count.getInt(bean));
+    assertEquals(7, count.get(bean));
+    assertEquals(Kind.LONG, total.kind);
+    assertEquals(8L, total.getLong(bean));
+    assertEquals(Kind.DOUBLE, ratio.kind);
+    assertEquals(0.5, ratio.getDouble(bean), 0);
+    assertEquals(Kind.OBJECT, name.kind);
+    assertEquals("bean", name.get(bean));
+    assertEquals(Kind.OBJECT, flag.kind);
+    assertEquals(true, flag.get(bean));
+  }
+
+  @Test
+  public void testPrivateMembers() throws Exception {
+    PrivateBean bean = new PrivateBean();
+    PropertyAccessor field = PropertyAccessor.of(PrivateBean.class.getDeclaredField("value"));
+    PropertyAccessor getter = PropertyAccessor.of(PrivateBean.class.getDeclaredMethod("getValue"));
+
+    assertEquals(Kind.INT, field.kind);
+    assertEquals(3, field.getInt(bean));
+    assertEquals(3, field.get(bean));
+    assertEquals(Kind.INT, getter.kind);
+    assertEquals(3, getter.getInt(bean));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testExceptionsFromGettersAreNotWrapped() throws Exception {
+    PropertyAccessor.of(Bean.class.getMethod("getBroken")).get(new Bean());
+  }
+
+  @Test
+  public void testCheckedExceptionsFromGettersAreWrapped() throws Exception {
+    Bean bean = new Bean();
+    PrivateBean privateBean = new PrivateBean();
+    PropertyAccessor[] accessors = {
+        PropertyAccessor.of(Bean.class.getMethod("getChecked")),
+        PropertyAccessor.of(Bean.class.getMethod("getCheckedCount")),
+        PropertyAccessor.of(PrivateBean.class.getDeclaredMethod("getChecked"))
+    };
+    Object[] targets = {bean, bean, privateBean};
+    for(int i = 0; i < accessors.length; i++) {
+      try {
+        accessors[i].get(targets[i]);
+        fail();
+      } catch(RuntimeException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+    try {
+      accessors[1].getInt(bean);
+      fail();
+    } catch(RuntimeException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  public static class Bean {
+    public int getCount() {
+      return 7;
+    }
+
+    public long getTotal() {
+      return 8;
+    }
+
+    public double getRatio() {
+      return 0.5;
+    }
+
+    public String getName() {
+      return "bean";
+    }
+
+    public boolean getFlag() {
+      return true;
+    }
+
+    public String getBroken() {
+      throw new IllegalStateException();
+    }
+
+    public String getChecked() throws IOException {
+      throw new IOException();
+    }
+
+    public int getCheckedCount() throws IOException {
+      throw new IOException();
+    }
+  }
+
+  private static class PrivateBean {
+    private int value = 3;
+
+    private int getValue() {
+      return value;
+    }
+
+    private String getChecked() throws IOException {
+      throw new IOException();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.monitorjbl.json;
+
+import com.monitorjbl.json.model.TestObject;
+import com.monitorjbl.json.model.TestObject.TestEnum;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.OptionalInt;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValueTypeTest {
+
+  @Test
+  public void testResolution() {
+    assertEquals(ValueType.STRING, ValueType.of(String.class));
+    assertEquals(ValueType.INTEGER, ValueType.of(Integer.class));
+    assertEquals(ValueType.DATE, ValueType.of(Timestamp.class));
+    assertEquals(ValueType.TEMPORAL, ValueType.of(LocalDate.class));
+    assertEquals(ValueType.TO_STRING, ValueType.of(URL.class));
+    assertEquals(ValueType.ENUM, ValueType.of(TestEnum.class));
+    assertEquals(ValueType.LIST, ValueType.of(ArrayList.class));
+    assertEquals(ValueType.ITERABLE, ValueType.of(HashSet.class));
+    assertEquals(ValueType.BYTE_ARRAY, ValueType.of(byte[].class));
+    assertEquals(ValueType.INT_ARRAY, ValueType.of(int[].class));
+    assertEquals(ValueType.ARRAY, ValueType.of(String[].class));
+    assertEquals(ValueType.MAP, ValueType.of(TreeMap.class));
+    assertEquals(ValueType.JACKSON, ValueType.of(BigInteger.class));
+    assertEquals(ValueType.JACKSON, ValueType.of(Duration.class));
+    assertEquals(ValueType.JACKSON, ValueType.of(OptionalInt.class));
+    assertEquals(ValueType.ITERABLE, ValueType.of(LinkedList.class));
+    assertEquals(ValueType.ITERABLE, ValueType.of(ArrayDeque.class));
+    assertEquals(ValueType.JACKSON, ValueType.of(Paths.get("a").getClass()));
+    assertEquals(ValueType.STREAM, ValueType.of(Stream.of(1).getClass()));
+    assertEquals(ValueType.STREAM, ValueType.of(new ArrayList<>().iterator().getClass()));
+    assertEquals(ValueType.OBJECT, ValueType.of(TestObject.class));
+  }
+}
@@ -46,45 +46,58 @@ public class WriterTest {
     sut = new JsonViewSerializer().new JsonWriter(serializerProvider, jgen, result);
   }
 
+  /**
+   * Matches a dotted path through the cached matcher of a match, the way fields are matched
+   */
+  private int matches(Set<String> patterns, String path) {
+    Match match = Match.match().include(patterns.toArray(new String[0]));
+    PathNode node = PathNode.root();
+    String[] segments = path.split("\\.");
+    for(int i = 0; i < segments.length - 1; i++) {
+      node = node.child(segments[i]);
+    }
+    return sut.containsMatchingPattern(match.getIncludeMatcher(), node, segments[segments.length - 1], true);
+  }
+
   @Test
   public void testContainsMatchingPattern_basic() {
     Set<String> patterns = newHashSet("field1", "field2");
-    assertEquals(1, sut.containsMatchingPattern(patterns, "field1", true));
-    assertEquals(1, sut.containsMatchingPattern(patterns, "field2", true));
-    assertEquals(-1, sut.containsMatchingPattern(patterns, "field3", true));
+    assertEquals(1, matches(patterns, "field1"));
+    assertEquals(1, matches(patterns, "field2"));
+    assertEquals(-1, matches(patterns, "field3"));
   }
 
   @Test
   public void testContainsMatchingPattern_wildcard() {
     Set<String> patterns = newHashSet("field*");
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field1", true));
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field2", true));
-    assertEquals(-1, sut.containsMatchingPattern(patterns, "val1", true));
+    assertEquals(0, matches(patterns, "field1"));
+    assertEquals(0, matches(patterns, "field2"));
+    assertEquals(-1, matches(patterns, "val1"));
   }
 
   @Test
   public void testContainsMatchingPattern_wildcardAll() {
     Set<String> patterns = newHashSet("*");
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field1", true));
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field2", true));
-    assertEquals(0, sut.containsMatchingPattern(patterns, "val1", true));
+    assertEquals(0, matches(patterns, "field1"));
+    assertEquals(0, matches(patterns, "field2"));
+    assertEquals(0, matches(patterns, "val1"));
   }
 
   @Test
   public void testContainsMatchingPattern_wildcardInChildPath() {
     Set<String> patterns = newHashSet("*.green");
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field1.green", true));
-    assertEquals(-1, sut.containsMatchingPattern(patterns, "field2.blue", true));
+    assertEquals(0, matches(patterns, "field1.green"));
+    assertEquals(-1, matches(patterns, "field2.blue"));
   }
 
   @Test
   public void testContainsMatchingPattern_wildcardInComplexPath() {
     Set<String> patterns = newHashSet("*.green.*");
-    assertEquals(-1, sut.containsMatchingPattern(patterns, "field1.green", true));
-    assertEquals(-1, sut.containsMatchingPattern(patterns, "field2.blue", true));
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field1.green.id", true));
-    assertEquals(-1, sut.containsMatchingPattern(patterns, "field1.blue.id", true));
-    assertEquals(0, sut.containsMatchingPattern(patterns, "field2.green.name", true));
+    assertEquals(-1, matches(patterns, "field1.green"));
+    assertEquals(-1, matches(patterns, "field2.blue"));
+    assertEquals(0, matches(patterns, "field1.green.id"));
+    assertEquals(-1, matches(patterns, "field1.blue.id"));
+    assertEquals(0, matches(patterns, "field2.green.name"));
   }
 
 //  @Test
@@ -217,60 +230,56 @@ public class WriterTest {
   @Test
   public void testWriteList_stringList() throws Exception {
     assertTrue(sut.writeList(newArrayList("val1", "val2")));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
   }
 
   @Test
   public void testWriteList_objectList() throws Exception {
     assertTrue(sut.writeList(newArrayList(new TestObject(), new TestObject())));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
   }
 
   @Test
   public void testWriteList_mixedList() throws Exception {
     assertTrue(sut.writeList(newArrayList(new TestObject(), "val2")));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
   }
 
   @Test
   public void testWriteList_stringArray() throws Exception {
     assertTrue(sut.writeList(new String[]{"val1", "val2"}));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
   }
 
   @Test
   public void testWriteList_objectArray() throws Exception {
     assertTrue(sut.writeList(new TestObject[]{new TestObject(), new TestObject()}));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
   }
 
   @Test
   public void testWriteList_intArray() throws Exception {
-    assertTrue(sut.writeList(new int[]{1, 2}));
-    verify(jgen, times(1)).writeStartArray();
-    verify(jgen, times(1)).writeEndArray();
-    verify(jgen, times(1)).writeNumber(1);
-    verify(jgen, times(1)).writeNumber(2);
+    int[] arr = new int[]{1, 2};
+    assertTrue(sut.writeList(arr));
+    verify(jgen, times(1)).writeArray(arr, 0, 2);
   }
 
   @Test
   public void testWriteList_longArray() throws Exception {
-    assertTrue(sut.writeList(new long[]{1L, 2L}));
-    verify(jgen, times(1)).writeStartArray();
-    verify(jgen, times(1)).writeEndArray();
-    verify(jgen, times(1)).writeNumber(1L);
-    verify(jgen, times(1)).writeNumber(2L);
+    long[] arr = new long[]{1L, 2L};
+    assertTrue(sut.writeList(arr));
+    verify(jgen, times(1)).writeArray(arr, 0, 2);
   }
 
   @Test
   public void testWriteList_shortArray() throws Exception {
     assertTrue(sut.writeList(new short[]{1, 2}));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
     verify(jgen, times(1)).writeNumber((short) 1);
     verify(jgen, times(1)).writeNumber((short) 2);
@@ -278,17 +287,15 @@ public class WriterTest {
 
   @Test
   public void testWriteList_doubleArray() throws Exception {
-    assertTrue(sut.writeList(new double[]{1.0, 2.0}));
-    verify(jgen, times(1)).writeStartArray();
-    verify(jgen, times(1)).writeEndArray();
-    verify(jgen, times(1)).writeNumber(1.0);
-    verify(jgen, times(1)).writeNumber(2.0);
+    double[] arr = new double[]{1.0, 2.0};
+    assertTrue(sut.writeList(arr));
+    verify(jgen, times(1)).writeArray(arr, 0, 2);
   }
 
   @Test
   public void testWriteList_floatArray() throws Exception {
     assertTrue(sut.writeList(new float[]{1f, 2f}));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
     verify(jgen, times(1)).writeNumber(1f);
     verify(jgen, times(1)).writeNumber(2f);
@@ -297,7 +304,7 @@ public class WriterTest {
   @Test
   public void testWriteList_booleanArray() throws Exception {
     assertTrue(sut.writeList(new boolean[]{true, false}));
-    verify(jgen, times(1)).writeStartArray();
+    verify(jgen, times(1)).writeStartArray(2);
     verify(jgen, times(1)).writeEndArray();
     verify(jgen, times(1)).writeBoolean(true);
     verify(jgen, times(1)).writeBoolean(false);
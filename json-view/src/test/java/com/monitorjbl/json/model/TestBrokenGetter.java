@@ -0,0 +1,17 @@
+package com.monitorjbl.json.model;
+
+public class TestBrokenGetter {
+  private String val;
+
+  public TestBrokenGetter(String val) {
+    this.val = val;
+  }
+
+  public String getVal() {
+    return val;
+  }
+
+  public String getBroken() {
+    throw new IllegalStateException("broken");
+  }
+}
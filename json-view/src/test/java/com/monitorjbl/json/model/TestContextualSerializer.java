@@ -0,0 +1,52 @@
+package com.monitorjbl.json.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestContextualSerializer extends StdSerializer<CustomType> implements ContextualSerializer {
+  private static final long serialVersionUID = 1L;
+  public static final AtomicInteger instances = new AtomicInteger();
+
+  private final String prefix;
+
+  public TestContextualSerializer() {
+    this("");
+  }
+
+  private TestContextualSerializer(String prefix) {
+    super(CustomType.class);
+    this.prefix = prefix;
+    instances.incrementAndGet();
+  }
+
+  @Override
+  public JsonSerializer<?> createContextual(SerializerProvider prov, BeanProperty property) {
+    return new TestContextualSerializer(property.getName() + ":");
+  }
+
+  @Override
+  public void serialize(CustomType value, JsonGenerator jgen, SerializerProvider provider) throws IOException {
+    jgen.writeString(prefix + value.getName());
+  }
+
+  public static class Price {
+    @JsonSerialize(using = TestContextualSerializer.class)
+    private CustomType amount;
+
+    public Price(CustomType amount) {
+      this.amount = amount;
+    }
+
+    public CustomType getAmount() {
+      return amount;
+    }
+  }
+}
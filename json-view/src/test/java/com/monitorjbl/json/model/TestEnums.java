@@ -0,0 +1,28 @@
+package com.monitorjbl.json.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+public class TestEnums {
+
+  public enum Renamed {
+    @JsonProperty("first")
+    FIRST,
+    SECOND
+  }
+
+  public enum Valued {
+    LOW(1), HIGH(10);
+
+    private final int value;
+
+    Valued(int value) {
+      this.value = value;
+    }
+
+    @JsonValue
+    public int getValue() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.monitorjbl.json.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+public class TestPrimitiveContainers {
+
+  /**
+   * A list of ints, which would be boxed element by element as a regular list
+   */
+  public static class IntList extends AbstractList<Integer> {
+    private final int[] values;
+
+    public IntList(int... values) {
+      this.values = values;
+    }
+
+    public int getInt(int index) {
+      return values[index];
+    }
+
+    @Override
+    public Integer get(int index) {
+      throw new UnsupportedOperationException("Boxed access");
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+  }
+
+  /**
+   * A map from ints to objects, which isn't a {@link java.util.Map}
+   */
+  public static class IntObjectMap<V> {
+    private int[] keys = new int[0];
+    private Object[] values = new Object[0];
+
+    public IntObjectMap<V> put(int key, V value) {
+      keys = Arrays.copyOf(keys, keys.length + 1);
+      values = Arrays.copyOf(values, values.length + 1);
+      keys[keys.length - 1] = key;
+      values[values.length - 1] = value;
+      return this;
+    }
+
+    public int size() {
+      return keys.length;
+    }
+
+    public int keyAt(int index) {
+      return keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+      return (V) values[index];
+    }
+  }
+}